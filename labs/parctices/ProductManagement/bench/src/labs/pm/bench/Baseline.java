@@ -0,0 +1,72 @@
+package labs.pm.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Properties;
+
+/**
+ * Recorded benchmark results to compare later runs against, stored as a
+ * properties file of {@code <name>.ns} and {@code <name>.error} entries.
+ **/
+public final class Baseline
+{
+    private final Properties results = new Properties();
+
+    private Baseline() {}
+
+    public static Baseline read(Path file) throws IOException
+    {
+        Baseline baseline = new Baseline();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            baseline.results.load(in);
+        }
+        return baseline;
+    }
+
+    public static void write(Path file, Collection<Measurement> measurements, String comments) throws IOException
+    {
+        Baseline baseline = new Baseline();
+        for (Measurement m : measurements) {
+            baseline.results.setProperty(m.name() + ".ns", String.valueOf(m.nanosPerOp()));
+            baseline.results.setProperty(m.name() + ".error", String.valueOf(m.error()));
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            baseline.results.store(out, comments);
+        }
+    }
+
+    /**
+     * Prints every measurement next to its recorded result. A difference
+     * counts only when it exceeds both {@code tolerance} (a fraction of the
+     * recorded time) and twice the combined error of the two runs.
+     *
+     * @return the number of benchmarks that got slower
+     **/
+    public int compare(Collection<Measurement> measurements, double tolerance, PrintStream out)
+    {
+        int regressions = 0;
+        for (Measurement m : measurements) {
+            String recorded = results.getProperty(m.name() + ".ns");
+            if (recorded == null) {
+                out.println(m + "  (no baseline)");
+                continue;
+            }
+            double before = Double.parseDouble(recorded);
+            double error = Double.parseDouble(results.getProperty(m.name() + ".error", "0"));
+            double delta = m.nanosPerOp() - before;
+            double noise = Math.max(tolerance * before, 2 * Math.hypot(error, m.error()));
+            String verdict = Math.abs(delta) <= noise ? "same" : delta > 0 ? "SLOWER" : "faster";
+            if (delta > noise) {
+                regressions++;
+            }
+            out.printf("%s  %+7.1f%% vs %.1f ns/op  %s%n", m, 100 * delta / before, before, verdict);
+        }
+        return regressions;
+    }
+}
@@ -0,0 +1,30 @@
+package labs.pm.bench;
+
+/**
+ * Sink for benchmark results, so that the JIT cannot drop the work that
+ * produced them as dead code.
+ **/
+public final class Blackhole
+{
+    private volatile Object marker = new Object();
+    private Object sink;
+    private long sum;
+
+    public void consume(Object value)
+    {
+        if (value == marker) {
+            sink = value;
+        }
+    }
+
+    public void consume(long value)
+    {
+        sum += value;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Blackhole[" + sum + ", " + (sink != null) + "]";
+    }
+}
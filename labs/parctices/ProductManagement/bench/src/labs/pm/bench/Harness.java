@@ -0,0 +1,84 @@
+package labs.pm.bench;
+
+import java.time.Duration;
+
+/**
+ * Minimal time boxed benchmark runner.
+ * Every iteration calls the operation in growing batches, sized not to
+ * overrun the iteration time by much. Warm-up iterations let the JIT
+ * compile the code under test and are discarded; measured iterations give
+ * the mean time per operation and its standard deviation.
+ **/
+public final class Harness
+{
+    @FunctionalInterface
+    public interface Operation
+    {
+        /**
+         * Runs the benchmarked code once; {@code invocation} counts the
+         * calls, so that operations can cycle through prepared inputs.
+         **/
+        void run(long invocation, Blackhole blackhole) throws Exception;
+    }
+
+    private final int warmups;
+    private final int iterations;
+    private final long iterationNanos;
+    private final Blackhole blackhole = new Blackhole();
+
+    public Harness(int warmups, int iterations, Duration iterationTime)
+    {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("At least one measured iteration is needed");
+        }
+        this.warmups = Math.max(0, warmups);
+        this.iterations = iterations;
+        this.iterationNanos = iterationTime.toNanos();
+    }
+
+    public Measurement measure(String name, Operation operation) throws Exception
+    {
+        long invocation = 0;
+        for (int i = 0; i < warmups; i++) {
+            invocation = iteration(operation, invocation);
+        }
+        double[] samples = new double[iterations];
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long before = invocation;
+            invocation = iteration(operation, invocation);
+            samples[i] = (double) (System.nanoTime() - start) / (invocation - before);
+            total += invocation - before;
+        }
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample / iterations;
+        }
+        double variance = 0;
+        for (double sample : samples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        return new Measurement(name, mean, error, total);
+    }
+
+    private long iteration(Operation operation, long invocation) throws Exception
+    {
+        long now = System.nanoTime();
+        long deadline = now + iterationNanos;
+        long batch = 1;
+        while (true) {
+            long start = now;
+            for (long i = 0; i < batch; i++) {
+                operation.run(invocation++, blackhole);
+            }
+            now = System.nanoTime();
+            if (now >= deadline) {
+                return invocation;
+            }
+            long perOp = Math.max(1, (now - start) / batch);
+            batch = Math.max(1, Math.min(batch * 2, (deadline - now) / perOp));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package labs.pm.bench;
+
+/**
+ * Average time per operation of one benchmark, with the standard deviation
+ * over its measured iterations as the error.
+ **/
+public record Measurement(String name, double nanosPerOp, double error, long operations)
+{
+    public double opsPerSecond()
+    {
+        return 1e9 / nanosPerOp;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%-16s %14.1f ns/op  +- %10.1f  %14.1f ops/s", name, nanosPerOp, error, opsPerSecond());
+    }
+}
@@ -0,0 +1,89 @@
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.ResourceBundle;
+
+/**
+ * Writes a synthetic data folder of product and review files in the format
+ * {@link ProductManager} loads. The same seed always gives the same
+ * catalog; the number of reviews per product varies around the average.
+ **/
+public final class CatalogGenerator
+{
+    private static final String[] NAMES = {"Tea", "Coffee", "Cake", "Cookie", "Juice", "Water", "Muffin", "Soup"};
+    private static final String[] WORDS = {"Nice", "Rather weak", "Fine", "Good", "Perfect", "Horrible", "Tasty", "Bland"};
+
+    private final String productFile;
+    private final String reviewFile;
+    private final Random random;
+
+    public CatalogGenerator(long seed)
+    {
+        ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+        productFile = config.getString("product.data.file");
+        reviewFile = config.getString("review.data.file");
+        random = new Random(seed);
+    }
+
+    /**
+     * Writes products with ids 1 to {@code products} into {@code folder}.
+     *
+     * @return the number of reviews written
+     **/
+    public long generate(Path folder, int products, int reviewsPerProduct) throws IOException
+    {
+        Files.createDirectories(folder);
+        long reviews = 0;
+        for (int id = 1; id <= products; id++) {
+            Product product = product(id);
+            Files.write(folder.resolve(productFile.replace("{0}", String.valueOf(id))),
+                List.of(CsvParser.format(product)), StandardCharsets.UTF_8);
+            int count = reviewsPerProduct > 0 ? random.nextInt(2 * reviewsPerProduct + 1) : 0;
+            List<String> lines = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                lines.add(CsvParser.format(review(product)));
+            }
+            if (count > 0) {
+                Files.write(folder.resolve(reviewFile.replace("{0}", String.valueOf(id))), lines, StandardCharsets.UTF_8);
+            }
+            reviews += count;
+        }
+        return reviews;
+    }
+
+    Product product(int id)
+    {
+        String name = NAMES[random.nextInt(NAMES.length)] + ' ' + id;
+        BigDecimal price = BigDecimal.valueOf(50 + random.nextInt(2000), 2);
+        Rating rating = Rating.values()[random.nextInt(Rating.values().length)];
+        return random.nextBoolean()
+            ? new Food(id, name, price, rating, LocalDate.now().plusDays(random.nextInt(30)))
+            : new Drink(id, name, price, rating);
+    }
+
+    Review review(Product product)
+    {
+        Rating rating = Rating.values()[1 + random.nextInt(Rating.values().length - 1)];
+        return new Review(rating, WORDS[random.nextInt(WORDS.length)] + ' ' + product.getName().toLowerCase());
+    }
+
+    public static void main(String... args) throws IOException
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: CatalogGenerator <folder> <products> [reviews per product] [seed]");
+            System.exit(2);
+        }
+        int reviews = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        long written = new CatalogGenerator(seed).generate(Path.of(args[0]), Integer.parseInt(args[1]), reviews);
+        System.out.println("Generated " + args[1] + " products and " + written + " reviews in " + args[0]);
+    }
+}
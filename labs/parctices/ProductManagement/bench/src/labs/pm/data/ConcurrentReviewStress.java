@@ -0,0 +1,129 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stress check of concurrent reviews: threads review a small set of
+ * products of an in-memory {@link ProductManager} at the same time, after
+ * which no review may be lost and every product must be rated by all of
+ * its reviews. Only the public manager API is used, so the check stands
+ * on its own. Options, all {@code --name=value}:
+ * <ul>
+ * <li>{@code threads}: number of threads reviewing at the same time</li>
+ * <li>{@code products}: number of products reviewed</li>
+ * <li>{@code reviews}: number of reviews posted by every thread</li>
+ * </ul>
+ * Exits with status 1 when a review is lost or a product is rated wrong.
+ **/
+public final class ConcurrentReviewStress
+{
+    private final int threads;
+    private final int products;
+    private final int perThread;
+
+    ConcurrentReviewStress(int threads, int products, int perThread)
+    {
+        this.threads = threads;
+        this.products = products;
+        this.perThread = perThread;
+    }
+
+    /**
+     * @throws AssertionError when a review is lost or a product is rated wrong
+     **/
+    void run() throws Exception
+    {
+        ProductManager pm = new ProductManager(Locale.UK);
+        for (int id = 1; id <= products; id++) {
+            pm.createProduct(id, "Tea " + id, BigDecimal.valueOf(199, 2), Rating.NOT_RATED);
+        }
+        Rating[] ratings = Rating.values();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<long[][]>> posted = new ArrayList<>(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                Random random = new Random(t);
+                posted.add(pool.submit(() -> {
+                    long[][] added = new long[2][products + 1];
+                    for (int i = 0; i < perThread; i++) {
+                        int id = 1 + random.nextInt(products);
+                        Rating rating = ratings[1 + random.nextInt(ratings.length - 1)];
+                        check(pm.reviewProduct(id, rating, "Stress") != null, "review of product " + id + " failed");
+                        added[0][id]++;
+                        added[1][id] += rating.ordinal();
+                    }
+                    return added;
+                }));
+            }
+            long[][] added = new long[2][products + 1];
+            for (Future<long[][]> future : posted) {
+                long[][] part;
+                try {
+                    part = future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AssertionError) {
+                        throw (AssertionError) e.getCause();
+                    }
+                    throw e;
+                }
+                for (int id = 1; id <= products; id++) {
+                    added[0][id] += part[0][id];
+                    added[1][id] += part[1][id];
+                }
+            }
+            for (int id = 1; id <= products; id++) {
+                RatingSummary summary = pm.getRatingSummary(id);
+                check(summary.getCount() == added[0][id] && summary.getSum() == added[1][id],
+                    "product " + id + " has " + summary.getCount() + " reviews, sum " + summary.getSum()
+                        + " instead of " + added[0][id] + ", sum " + added[1][id]);
+                Rating rating = (added[0][id] == 0)
+                    ? Rating.NOT_RATED
+                    : Rateable.convert((int) Math.round((double) added[1][id] / added[0][id]));
+                Rating actual = pm.findProduct(id).getRating();
+                check(actual == rating, "product " + id + " is rated " + actual + " instead of " + rating);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void main(String... args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        int products = Integer.parseInt(options.getOrDefault("products", "100"));
+        int reviews = Integer.parseInt(options.getOrDefault("reviews", "20000"));
+        try {
+            new ConcurrentReviewStress(threads, products, reviews).run();
+        } catch (AssertionError e) {
+            System.out.println("FAIL " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("PASS " + threads + " threads, " + (long) threads * reviews + " reviews over "
+            + products + " products");
+    }
+}
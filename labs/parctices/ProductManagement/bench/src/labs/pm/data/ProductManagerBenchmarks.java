@@ -0,0 +1,341 @@
+package labs.pm.data;
+
+import labs.pm.bench.Baseline;
+import labs.pm.bench.Harness;
+import labs.pm.bench.Measurement;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the {@link ProductManager} hot paths on a generated catalog.
+ * Options, all {@code --name=value}:
+ * <ul>
+ * <li>{@code products}, {@code reviews}: catalog size and average reviews per product</li>
+ * <li>{@code warmups}, {@code iterations}, {@code time}: iteration counts and seconds per iteration</li>
+ * <li>{@code threads}: number of threads of the concurrent review benchmarks</li>
+ * <li>{@code filter}: regular expression of the benchmarks to run</li>
+ * <li>{@code baseline}: file of recorded results; compared against when it exists,
+ *     written when it does not or when {@code record=true}</li>
+ * <li>{@code tolerance}: relative difference to the baseline that is still reported as the same</li>
+ * </ul>
+ * Review log syncing is off unless {@code -Dlabs.pm.review.log.sync=true}
+ * is given, so that {@code reviewProduct} measures the manager, not the disk.
+ **/
+public final class ProductManagerBenchmarks
+{
+    @FunctionalInterface
+    private interface Benchmark
+    {
+        Measurement run() throws Exception;
+    }
+
+    private static final int INPUTS = 1 << 12;
+    private static final int ROUND = 256;
+    private static final int LOOKUPS = 1 << 16;
+
+    private final Map<String, String> options;
+    private final Harness harness;
+    private final Path workspace;
+    private final Path dataFolder;
+    private final int products;
+
+    private ProductManagerBenchmarks(Map<String, String> options) throws IOException
+    {
+        this.options = options;
+        harness = new Harness(intOption("warmups", 3), intOption("iterations", 5),
+            Duration.ofMillis((long) (1000 * Double.parseDouble(options.getOrDefault("time", "1")))));
+        products = intOption("products", 2000);
+        workspace = Files.createTempDirectory("pm-bench");
+        dataFolder = workspace.resolve("data");
+        new CatalogGenerator(42).generate(dataFolder, products, intOption("reviews", 10));
+        System.setProperty("labs.pm.data.folder", dataFolder.toString());
+        System.setProperty("labs.pm.review.log.sync", System.getProperty("labs.pm.review.log.sync", "false"));
+    }
+
+    private int intOption(String name, int defaultValue)
+    {
+        return Integer.parseInt(options.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * New manager over the generated data folder, with a report and temp
+     * folder of its own so that benchmarks do not see each other's files.
+     **/
+    private ProductManager manager(String name) throws IOException
+    {
+        Path reports = Files.createDirectories(workspace.resolve(name).resolve("reports"));
+        Path temp = workspace.resolve(name).resolve("temp");
+        System.setProperty("labs.pm.reports.folder", reports.toString());
+        System.setProperty("labs.pm.temp.folder", temp.toString());
+        return new ProductManager("en-GB");
+    }
+
+    private int[] ids()
+    {
+        Random random = new Random(7);
+        int[] ids = new int[INPUTS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1 + random.nextInt(products);
+        }
+        return ids;
+    }
+
+    private Map<String, Benchmark> benchmarks()
+    {
+        Map<String, Benchmark> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("parseProduct", this::parseProduct);
+        benchmarks.put("parseReview", this::parseReview);
+        benchmarks.put("loadAllData", this::loadAllData);
+        benchmarks.put("findProduct", this::findProduct);
+        benchmarks.put("findProduct1k", () -> findProductAt("findProduct1k", 1_000));
+        benchmarks.put("findProduct100k", () -> findProductAt("findProduct100k", 100_000));
+        benchmarks.put("findProduct400k", () -> findProductAt("findProduct400k", 400_000));
+        benchmarks.put("reviewProduct", this::reviewProduct);
+        benchmarks.put("reviewStriped", () -> reviewConcurrently("reviewStriped", false));
+        benchmarks.put("reviewGlobalLock", () -> reviewConcurrently("reviewGlobalLock", true));
+        benchmarks.put("formatReport", this::formatReport);
+        benchmarks.put("printProducts", this::printProducts);
+        benchmarks.put("getDiscounts", this::getDiscounts);
+        benchmarks.put("dumpRestore", this::dumpRestore);
+        return benchmarks;
+    }
+
+    private Measurement parseProduct() throws Exception
+    {
+        CatalogGenerator generator = new CatalogGenerator(1);
+        String[] lines = new String[INPUTS];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = CsvParser.format(generator.product(i + 1));
+        }
+        CsvParser parser = new CsvParser();
+        return harness.measure("parseProduct", (n, bh) -> bh.consume(parser.parseProduct(lines[(int) n & (INPUTS - 1)], 1)));
+    }
+
+    private Measurement parseReview() throws Exception
+    {
+        CatalogGenerator generator = new CatalogGenerator(1);
+        Product product = generator.product(1);
+        String[] lines = new String[INPUTS];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = CsvParser.format(generator.review(product));
+        }
+        CsvParser parser = new CsvParser();
+        return harness.measure("parseReview", (n, bh) -> bh.consume(parser.parseReview(lines[(int) n & (INPUTS - 1)], 1)));
+    }
+
+    private Measurement loadAllData() throws Exception
+    {
+        manager("loadAllData").close();
+        return harness.measure("loadAllData", (n, bh) -> {
+            try (ProductManager pm = new ProductManager("en-GB")) {
+                bh.consume(pm.getLoadReport());
+            }
+        });
+    }
+
+    private Measurement findProduct() throws Exception
+    {
+        int[] ids = ids();
+        try (ProductManager pm = manager("findProduct")) {
+            return harness.measure("findProduct", (n, bh) -> bh.consume(pm.findProduct(ids[(int) n & (INPUTS - 1)])));
+        }
+    }
+
+    /**
+     * Lookups by id in an in-memory catalog of {@code size} products,
+     * regardless of {@code --products}. With the id index a lookup only
+     * gets slower by the cache misses of a larger catalog, where a scan
+     * would slow down in proportion to it. Ids are drawn from
+     * {@value #LOOKUPS} random ones, so that large catalogs are not served
+     * from a few cached entries.
+     **/
+    private Measurement findProductAt(String name, int size) throws Exception
+    {
+        Random random = new Random(7);
+        int[] ids = new int[LOOKUPS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1 + random.nextInt(size);
+        }
+        try (ProductManager pm = new ProductManager(Locale.UK, Metrics.NONE)) {
+            for (int id = 1; id <= size; id++) {
+                pm.createProduct(id, "Tea " + id, BigDecimal.valueOf(199 + id % 1000, 2), Rating.THREE_STAR);
+            }
+            return harness.measure(name, (n, bh) -> bh.consume(pm.findProduct(ids[(int) n & (LOOKUPS - 1)])));
+        }
+    }
+
+    private Measurement reviewProduct() throws Exception
+    {
+        int[] ids = ids();
+        Rating[] ratings = Rating.values();
+        try (ProductManager pm = manager("reviewProduct")) {
+            return harness.measure("reviewProduct", (n, bh) -> bh.consume(
+                pm.reviewProduct(ids[(int) n & (INPUTS - 1)], ratings[1 + (int) (n % (ratings.length - 1))], "Benchmark")));
+        }
+    }
+
+    /**
+     * Reviews from several threads at once, one operation being a round of
+     * {@value #ROUND} reviews on every thread. With {@code global} every
+     * review holds one monitor, as the synchronized path did before the
+     * manager locked products by stripe.
+     **/
+    private Measurement reviewConcurrently(String name, boolean global) throws Exception
+    {
+        int threads = intOption("threads", 4);
+        int[] ids = ids();
+        Rating[] ratings = Rating.values();
+        Object monitor = new Object();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> rounds = new ArrayList<>(threads);
+        try (ProductManager pm = manager(name)) {
+            return harness.measure(name, (n, bh) -> {
+                rounds.clear();
+                for (int t = 0; t < threads; t++) {
+                    long first = (n * threads + t) * ROUND;
+                    rounds.add(pool.submit(() -> {
+                        int reviewed = 0;
+                        for (long i = first; i < first + ROUND; i++) {
+                            int id = ids[(int) i & (INPUTS - 1)];
+                            Rating rating = ratings[1 + (int) (i % (ratings.length - 1))];
+                            Product product;
+                            if (global) {
+                                synchronized (monitor) {
+                                    product = pm.reviewProduct(id, rating, "Benchmark");
+                                }
+                            } else {
+                                product = pm.reviewProduct(id, rating, "Benchmark");
+                            }
+                            if (product != null) {
+                                reviewed++;
+                            }
+                        }
+                        return reviewed;
+                    }));
+                }
+                for (Future<Integer> round : rounds) {
+                    bh.consume(round.get());
+                }
+            });
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Measurement formatReport() throws Exception
+    {
+        int[] ids = ids();
+        BufferedWriter out = new BufferedWriter(Writer.nullWriter());
+        try (ProductManager pm = manager("formatReport")) {
+            return harness.measure("formatReport", (n, bh) -> pm.formatReport(pm.findProduct(ids[(int) n & (INPUTS - 1)]), out));
+        }
+    }
+
+    private Measurement printProducts() throws Exception
+    {
+        BigDecimal limit = BigDecimal.valueOf(5);
+        Comparator<Product> byRating = Comparator.comparing(Product::getRating).reversed();
+        try (ProductManager pm = manager("printProducts")) {
+            return harness.measure("printProducts", (n, bh) -> pm.printProducts(p -> p.getPrice().compareTo(limit) < 0, byRating));
+        }
+    }
+
+    private Measurement getDiscounts() throws Exception
+    {
+        try (ProductManager pm = manager("getDiscounts")) {
+            return harness.measure("getDiscounts", (n, bh) -> bh.consume(pm.getDiscounts()));
+        }
+    }
+
+    private Measurement dumpRestore() throws Exception
+    {
+        try (ProductManager pm = manager("dumpRestore")) {
+            return harness.measure("dumpRestore", (n, bh) -> {
+                pm.dumpData();
+                pm.restoreData();
+            });
+        }
+    }
+
+    private void deleteWorkspace() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(workspace)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Map<String, String> parse(String... args)
+    {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    public static void main(String... args) throws Exception
+    {
+        ProductManagerBenchmarks bench = new ProductManagerBenchmarks(parse(args));
+        Pattern filter = Pattern.compile(bench.options.getOrDefault("filter", ".*"));
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ProductManager.logger.setLevel(Level.WARNING);
+        List<Measurement> results = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Benchmark> benchmark : bench.benchmarks().entrySet()) {
+                if (filter.matcher(benchmark.getKey()).matches()) {
+                    Measurement result = benchmark.getValue().run();
+                    console.println(result);
+                    results.add(result);
+                }
+            }
+        } finally {
+            System.setOut(console);
+            bench.deleteWorkspace();
+        }
+
+        String baseline = bench.options.get("baseline");
+        if (baseline == null) {
+            return;
+        }
+        Path file = Path.of(baseline);
+        if (Files.exists(file) && !Boolean.parseBoolean(bench.options.get("record"))) {
+            double tolerance = Double.parseDouble(bench.options.getOrDefault("tolerance", "0.05"));
+            console.println();
+            int slower = Baseline.read(file).compare(results, tolerance, console);
+            console.println(slower + " of " + results.size() + " benchmarks slower than " + file);
+        } else {
+            Baseline.write(file, results, bench.products + " products, " + bench.options
+                + ", Java " + Runtime.version());
+            console.println("Recorded " + results.size() + " results in " + file);
+        }
+    }
+}
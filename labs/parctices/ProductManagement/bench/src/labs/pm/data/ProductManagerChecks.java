@@ -0,0 +1,204 @@
+package labs.pm.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Correctness checks of {@link ProductManager} on a generated catalog, run
+ * the way {@link ProductManagerBenchmarks} are. Options, all
+ * {@code --name=value}:
+ * <ul>
+ * <li>{@code products}, {@code reviews}: catalog size and average reviews per product</li>
+ * <li>{@code threads}: number of threads reviewing at the same time</li>
+ * <li>{@code filter}: regular expression of the checks to run</li>
+ * </ul>
+ * Exits with status 1 when a check fails.
+ **/
+public final class ProductManagerChecks
+{
+    @FunctionalInterface
+    private interface Check
+    {
+        void run() throws Exception;
+    }
+
+    private final Map<String, String> options;
+    private final Path workspace;
+    private final Path dataFolder;
+    private final int products;
+
+    private ProductManagerChecks(Map<String, String> options) throws IOException
+    {
+        this.options = options;
+        products = intOption("products", 2000);
+        workspace = Files.createTempDirectory("pm-checks");
+        dataFolder = workspace.resolve("data");
+        new CatalogGenerator(42).generate(dataFolder, products, intOption("reviews", 10));
+        System.setProperty("labs.pm.data.folder", dataFolder.toString());
+        System.setProperty("labs.pm.review.log.sync", "false");
+    }
+
+    private int intOption(String name, int defaultValue)
+    {
+        return Integer.parseInt(options.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * New manager over the generated data folder, with a report and temp
+     * folder of its own so that checks do not see each other's files.
+     **/
+    private ProductManager manager(String name) throws IOException
+    {
+        Path reports = Files.createDirectories(workspace.resolve(name).resolve("reports"));
+        Path temp = workspace.resolve(name).resolve("temp");
+        System.setProperty("labs.pm.reports.folder", reports.toString());
+        System.setProperty("labs.pm.temp.folder", temp.toString());
+        return new ProductManager("en-GB");
+    }
+
+    private Map<String, Check> checks()
+    {
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("columnarRoundTrip", this::columnarRoundTrip);
+        checks.put("concurrentReviews", this::concurrentReviews);
+        checks.put("multiLineReview", this::multiLineReview);
+        return checks;
+    }
+
+    /**
+     * Exporting the catalog loaded from CSV to a columnar file and importing
+     * it gives back the same products and reviews.
+     **/
+    private void columnarRoundTrip() throws Exception
+    {
+        Path file = workspace.resolve("catalog.pmc");
+        try (ProductManager csv = manager("csv"); ProductManager columnar = manager("columnar")) {
+            csv.exportColumnar(file);
+            columnar.importColumnar(file);
+            CatalogSnapshot expected = csv.getCatalog();
+            CatalogSnapshot actual = columnar.getCatalog();
+            check(expected.size() == products, "loaded " + expected.size() + " of " + products + " products");
+            check(actual.size() == expected.size(), "imported " + actual.size() + " of " + expected.size() + " products");
+            for (Product product : (Iterable<Product>) expected.products()::iterator) {
+                int id = product.getId();
+                Optional<Product> imported = actual.findProduct(id);
+                check(imported.isPresent(), "product " + id + " is missing");
+                Product copy = imported.get();
+                check(copy.getClass() == product.getClass(), "product " + id + " is a " + copy.getClass().getSimpleName());
+                check(copy.getName().equals(product.getName()), "name of product " + id + ": " + copy.getName());
+                check(copy.getPrice().equals(product.getPrice()), "price of product " + id + ": " + copy.getPrice());
+                check(Objects.equals(copy.getBestBefore(), product.getBestBefore()),
+                    "best before of product " + id + ": " + copy.getBestBefore());
+                check(copy.getRating() == product.getRating(), "rating of product " + id + ": " + copy.getRating());
+                List<Review> reviews = expected.getReviews(id);
+                check(actual.getReviews(id).equals(reviews), "reviews of product " + id + " differ");
+            }
+        }
+    }
+
+    /**
+     * Threads reviewing a small set of products at the same time lose no
+     * review, see {@link ConcurrentReviewStress}.
+     **/
+    private void concurrentReviews() throws Exception
+    {
+        new ConcurrentReviewStress(intOption("threads", 8), Math.min(products, 100), 20_000).run();
+    }
+
+    /**
+     * A review with line breaks and backslashes in its comments survives
+     * compaction into the review file and loading it back.
+     **/
+    private void multiLineReview() throws Exception
+    {
+        int id = products;
+        String comments = "First line\nsecond line\r\nthird line \\n not a break\\";
+        List<Review> expected = new ArrayList<>();
+        try (ProductManager pm = manager("multiLineReview")) {
+            pm.reviewProduct(id, Rating.FOUR_STAR, comments);
+            pm.compactReviewLog();
+            expected.addAll(pm.getCatalog().getReviews(id));
+        }
+        try (ProductManager pm = manager("multiLineReview")) {
+            List<Review> reviews = pm.getCatalog().getReviews(id);
+            check(reviews.equals(expected), "reviews of product " + id + " are " + reviews + " instead of " + expected);
+            check(reviews.get(reviews.size() - 1).comments().equals(comments),
+                "comments read back as " + reviews.get(reviews.size() - 1).comments());
+        }
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private void deleteWorkspace() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(workspace)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Map<String, String> parse(String... args)
+    {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    public static void main(String... args) throws Exception
+    {
+        ProductManagerChecks checks = new ProductManagerChecks(parse(args));
+        Pattern filter = Pattern.compile(checks.options.getOrDefault("filter", ".*"));
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ProductManager.logger.setLevel(Level.WARNING);
+        int failed = 0;
+        int run = 0;
+        try {
+            for (Map.Entry<String, Check> check : checks.checks().entrySet()) {
+                if (filter.matcher(check.getKey()).matches()) {
+                    run++;
+                    try {
+                        check.getValue().run();
+                        console.println("PASS " + check.getKey());
+                    } catch (AssertionError e) {
+                        failed++;
+                        console.println("FAIL " + check.getKey() + ": " + e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            System.setOut(console);
+            checks.deleteWorkspace();
+        }
+        console.println(failed + " of " + run + " checks failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
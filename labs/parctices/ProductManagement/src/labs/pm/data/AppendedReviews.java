@@ -0,0 +1,120 @@
+package labs.pm.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.RandomAccess;
+
+/**
+ * Immutable review list: a base list that is never modified followed by
+ * the reviews appended to it since. Appending returns a new list that
+ * shares the tail buffer with this one and writes past the end this one
+ * can see, so a list never changes once published. Only the newest list
+ * of a product may be appended to, which the stripe lock of the product
+ * guarantees.
+ **/
+final class AppendedReviews extends AbstractList<Review> implements RandomAccess
+{
+    private static final int MIN_CAPACITY = 4;
+
+    private final List<Review> base;
+    private final int baseSize;
+    private final Review[] tail;
+    private final int tailSize;
+
+    private AppendedReviews(List<Review> base, int baseSize, Review[] tail, int tailSize)
+    {
+        this.base = base;
+        this.baseSize = baseSize;
+        this.tail = tail;
+        this.tailSize = tailSize;
+    }
+
+    /**
+     * Returns {@code reviews} followed by {@code added}; {@code reviews}
+     * itself is left as it is.
+     **/
+    static List<Review> append(List<Review> reviews, List<Review> added)
+    {
+        if (added.isEmpty()) {
+            return reviews;
+        }
+        AppendedReviews appended = (reviews instanceof AppendedReviews)
+            ? (AppendedReviews) reviews
+            : new AppendedReviews(reviews, reviews.size(), new Review[Math.max(MIN_CAPACITY, added.size())], 0);
+        return appended.append(added);
+    }
+
+    /**
+     * Returns {@code reviews} with a tail buffer of its own, so that the
+     * owner of the copy and the owner of {@code reviews} may both append.
+     * The base list is shared, as nothing ever writes to it.
+     **/
+    static List<Review> rebase(List<Review> reviews)
+    {
+        if (!(reviews instanceof AppendedReviews)) {
+            return reviews;
+        }
+        AppendedReviews appended = (AppendedReviews) reviews;
+        return new AppendedReviews(appended.base, appended.baseSize,
+            Arrays.copyOf(appended.tail, Math.max(MIN_CAPACITY, appended.tailSize)), appended.tailSize);
+    }
+
+    private AppendedReviews append(List<Review> added)
+    {
+        int size = tailSize + added.size();
+        Review[] buffer = (size <= tail.length) ? tail : Arrays.copyOf(tail, Math.max(size, tail.length * 2));
+        for (int i = 0; i < added.size(); i++) {
+            buffer[tailSize + i] = added.get(i);
+        }
+        return new AppendedReviews(base, baseSize, buffer, size);
+    }
+
+    /**
+     * This list with a base that goes through the review cache looked up
+     * once, or this list itself.
+     **/
+    AppendedReviews resolved()
+    {
+        return (base instanceof ReviewCache.CachedReviews)
+            ? new AppendedReviews(((ReviewCache.CachedReviews) base).snapshot(), baseSize, tail, tailSize)
+            : this;
+    }
+
+    @Override
+    public Review get(int index)
+    {
+        if (index < 0 || index >= baseSize + tailSize) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index < baseSize ? base.get(index) : tail[index - baseSize];
+    }
+
+    @Override
+    public int size()
+    {
+        return baseSize + tailSize;
+    }
+
+    @Override
+    public Iterator<Review> iterator()
+    {
+        return listIterator(0);
+    }
+
+    @Override
+    public ListIterator<Review> listIterator(int index)
+    {
+        AppendedReviews resolved = resolved();
+        return (resolved == this) ? super.listIterator(index) : resolved.listIterator(index);
+    }
+
+    @Override
+    public List<Review> subList(int fromIndex, int toIndex)
+    {
+        AppendedReviews resolved = resolved();
+        return (resolved == this) ? super.subList(fromIndex, toIndex) : resolved.subList(fromIndex, toIndex);
+    }
+}
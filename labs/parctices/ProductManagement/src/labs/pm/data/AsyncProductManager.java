@@ -0,0 +1,217 @@
+package labs.pm.data;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static labs.pm.data.ProductManager.logger;
+
+/**
+ * Front end of a {@link ProductManager} whose operations on disk return at
+ * once with a {@link CompletableFuture}. They run on a fixed number of disk
+ * threads, and at most {@code maxPending} of them wait or run at a time:
+ * beyond that a call fails at once with a {@link RejectedExecutionException}
+ * instead of queueing behind a slow volume. Every operation fails with a
+ * {@link TimeoutException} after the configured timeout.
+ * Cancelling, or timing out, drops an operation that has not started.
+ * Once started, restoring is interrupted, which stops its reads; the other
+ * operations finish, as stopping them halfway would leave a partial file or
+ * a broken review log behind.
+ * Reads of the catalog do not touch the disk: use {@link #getManager()}.
+ **/
+public final class AsyncProductManager implements AutoCloseable
+{
+    private final ProductManager manager;
+    private final ExecutorService disk;
+    private final Semaphore pending;
+    private final int maxPending;
+    private final Duration timeout;
+
+    private AsyncProductManager(ProductManager manager, ExecutorService disk, int maxPending, Duration timeout)
+    {
+        this.manager = manager;
+        this.disk = disk;
+        this.pending = new Semaphore(maxPending);
+        this.maxPending = maxPending;
+        this.timeout = timeout;
+    }
+
+    public static CompletableFuture<AsyncProductManager> load(String languageTag, int diskThreads, int maxPending,
+                                                              Duration timeout)
+    {
+        return load(languageTag, Metrics.NONE, diskThreads, maxPending, timeout);
+    }
+
+    /**
+     * Loads the data of a new {@link ProductManager} on a disk thread.
+     *
+     * @param diskThreads number of operations on disk that run at the same time
+     * @param maxPending number of operations on disk that may run or wait
+     * @param timeout time after which an operation fails, {@code null} for none
+     **/
+    public static CompletableFuture<AsyncProductManager> load(String languageTag, Metrics metrics, int diskThreads,
+                                                              int maxPending, Duration timeout)
+    {
+        if (diskThreads < 1 || maxPending < diskThreads) {
+            throw new IllegalArgumentException("Invalid disk threads " + diskThreads + " or pending " + maxPending);
+        }
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService disk = Executors.newFixedThreadPool(diskThreads, task -> {
+            Thread thread = new Thread(task, "product-disk-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture<AsyncProductManager> loaded = new CompletableFuture<>();
+        disk.execute(() -> {
+            try {
+                AsyncProductManager async = new AsyncProductManager(new ProductManager(languageTag, metrics), disk,
+                    maxPending, timeout);
+                if (!loaded.complete(async)) {
+                    disk.shutdown();
+                    async.manager.close();
+                }
+            } catch (RuntimeException | Error e) {
+                disk.shutdown();
+                loaded.completeExceptionally(e);
+            }
+        });
+        return (timeout == null) ? loaded : loaded.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The manager itself, for reads of the catalog and for everything else
+     * that does not touch the disk.
+     **/
+    public ProductManager getManager()
+    {
+        return manager;
+    }
+
+    /**
+     * Number of operations on disk waiting or running.
+     **/
+    public int getPending()
+    {
+        return maxPending - pending.availablePermits();
+    }
+
+    /**
+     * Reviews a product; the review is in the review log when the future
+     * completes.
+     *
+     * @return the re-rated product
+     **/
+    public CompletableFuture<Product> reviewProduct(int id, Rating rating, String comments)
+    {
+        return submit(false, () -> {
+            Product reviewed = manager.reviewProduct(manager.findProduct(id), rating, comments);
+            if (reviewed == null) {
+                throw new ProductManagerException("Review of product " + id + " could not be logged");
+            }
+            return reviewed;
+        });
+    }
+
+    public CompletableFuture<Void> printProductReport(int id)
+    {
+        return submit(false, () -> {
+            manager.printProductReport(manager.findProduct(id));
+            return null;
+        });
+    }
+
+    public CompletableFuture<ReportSummary> printProductReports(Collection<Integer> ids)
+    {
+        return submit(false, () -> manager.printProductReports(ids));
+    }
+
+    /**
+     * @return the snapshot file, or {@code null} when there was no data to dump
+     **/
+    public CompletableFuture<Path> dumpData()
+    {
+        return submit(false, manager::dump);
+    }
+
+    public CompletableFuture<Void> restoreData()
+    {
+        return submit(true, () -> {
+            manager.restore();
+            return null;
+        });
+    }
+
+    /**
+     * Runs {@code task} on a disk thread once a place is free.
+     *
+     * @param interruptible whether cancelling interrupts the task once it runs
+     **/
+    private <T> CompletableFuture<T> submit(boolean interruptible, Callable<T> task)
+    {
+        if (!pending.tryAcquire()) {
+            return CompletableFuture.failedFuture(
+                new RejectedExecutionException(maxPending + " operations on disk are pending already"));
+        }
+        AtomicBoolean started = new AtomicBoolean();
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                pending.release();
+            }
+        };
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> running;
+        try {
+            running = disk.submit(() -> {
+                started.set(true);
+                try {
+                    if (!result.isDone()) {
+                        result.complete(task.call());
+                    }
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    release.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release.run();
+            return CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, error) -> {
+            if (error != null && running.cancel(interruptible) && !started.get()) {
+                release.run();
+            }
+        });
+        return (timeout == null) ? result : result.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits for the operations on disk to finish, then closes the manager.
+     **/
+    @Override
+    public void close()
+    {
+        disk.shutdown();
+        try {
+            if (!disk.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.log(Level.WARNING, "Operations on disk did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        manager.close();
+    }
+}
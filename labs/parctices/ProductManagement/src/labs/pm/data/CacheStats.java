@@ -0,0 +1,13 @@
+package labs.pm.data;
+
+/**
+ * Counters of the review cache used when reviews are loaded on demand.
+ **/
+public record CacheStats(long hits, long misses, long evictions, int products, long weight, long maxWeight)
+{
+    public double hitRate()
+    {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+}
@@ -0,0 +1,132 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary indexes of product ids by rating, price, type and best-before
+ * date. Updates for different products may run concurrently, so every
+ * structure is a concurrent one; queries re-check each candidate against
+ * the current product, which makes a briefly stale entry harmless.
+ **/
+final class CatalogIndex
+{
+    private final Map<Rating, Set<Integer>> byRating = new EnumMap<>(Rating.class);
+    private final NavigableMap<BigDecimal, Set<Integer>> byPrice = new ConcurrentSkipListMap<>();
+    private final NavigableMap<LocalDate, Set<Integer>> byBestBefore = new ConcurrentSkipListMap<>();
+    private final Set<Integer> foods = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> drinks = ConcurrentHashMap.newKeySet();
+
+    CatalogIndex()
+    {
+        for (Rating rating : Rating.values()) {
+            byRating.put(rating, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    void add(Product product)
+    {
+        Integer id = product.getId();
+        byRating.get(product.getRating()).add(id);
+        byPrice.computeIfAbsent(product.getPrice(), k -> ConcurrentHashMap.newKeySet()).add(id);
+        if (product instanceof Food) {
+            foods.add(id);
+            byBestBefore.computeIfAbsent(product.getBestBefore(), k -> ConcurrentHashMap.newKeySet()).add(id);
+        } else {
+            drinks.add(id);
+        }
+    }
+
+    void rerate(Product previous, Product current)
+    {
+        if (previous.getRating() != current.getRating()) {
+            byRating.get(previous.getRating()).remove(previous.getId());
+            byRating.get(current.getRating()).add(current.getId());
+        }
+    }
+
+    void remove(Product product)
+    {
+        Integer id = product.getId();
+        byRating.get(product.getRating()).remove(id);
+        removeFrom(byPrice, product.getPrice(), id);
+        if (product instanceof Food) {
+            foods.remove(id);
+            removeFrom(byBestBefore, product.getBestBefore(), id);
+        } else {
+            drinks.remove(id);
+        }
+    }
+
+    private static <K> void removeFrom(NavigableMap<K, Set<Integer>> index, K key, Integer id)
+    {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    void clear()
+    {
+        byRating.values().forEach(Set::clear);
+        byPrice.clear();
+        byBestBefore.clear();
+        foods.clear();
+        drinks.clear();
+    }
+
+    Set<Integer> withRating(Rating rating)
+    {
+        return byRating.get(rating);
+    }
+
+    /**
+     * Ids of the products of {@code type}, or {@code null} when every
+     * product is of that type and the index does not narrow anything down.
+     **/
+    Set<Integer> ofType(Class<? extends Product> type)
+    {
+        boolean food = type.isAssignableFrom(Food.class);
+        boolean drink = type.isAssignableFrom(Drink.class);
+        if (food && drink) {
+            return null;
+        }
+        return food ? foods : drink ? drinks : Set.of();
+    }
+
+    Collection<Set<Integer>> withPrice(BigDecimal min, BigDecimal max)
+    {
+        return range(byPrice, min, max).values();
+    }
+
+    Collection<Set<Integer>> withBestBefore(LocalDate from, LocalDate to)
+    {
+        return range(byBestBefore, from, to).values();
+    }
+
+    private static <K extends Comparable<? super K>> NavigableMap<K, Set<Integer>> range(
+        NavigableMap<K, Set<Integer>> index, K from, K to)
+    {
+        if (from != null && to != null && from.compareTo(to) > 0) {
+            return Collections.emptyNavigableMap();
+        }
+        if (from == null && to == null) {
+            return index;
+        }
+        if (from == null) {
+            return index.headMap(to, true);
+        }
+        if (to == null) {
+            return index.tailMap(from, true);
+        }
+        return index.subMap(from, true, to, true);
+    }
+}
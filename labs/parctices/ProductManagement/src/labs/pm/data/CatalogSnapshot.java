@@ -0,0 +1,246 @@
+package labs.pm.data;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Immutable, versioned state of the whole catalog: every product with its
+ * reviews and rating summary. A {@link ProductManager} publishes a new
+ * snapshot for every change and derives it from the previous one, sharing
+ * everything the change did not touch. A snapshot can be read for as long
+ * as needed without locks and without holding up writers.
+ * Obtain the current one through {@link ProductManager#getCatalog()}.
+ **/
+public final class CatalogSnapshot
+{
+    /**
+     * A product with its reviews. The summary of reviews that are loaded
+     * on demand is only computed when it is first asked for. The product
+     * is either an object or a row of a {@link ColumnarStore}, of which a
+     * view is created every time it is asked for.
+     **/
+    static final class Entry
+    {
+        private final Product product;
+        private final ColumnarStore store;
+        private final int row;
+        private final List<Review> reviews;
+        private volatile RatingSummary summary;
+
+        Entry(Product product, List<Review> reviews, RatingSummary summary)
+        {
+            this(product, null, -1, reviews, summary);
+        }
+
+        Entry(ColumnarStore store, int row, List<Review> reviews, RatingSummary summary)
+        {
+            this(null, store, row, reviews, summary);
+        }
+
+        private Entry(Product product, ColumnarStore store, int row, List<Review> reviews, RatingSummary summary)
+        {
+            this.product = product;
+            this.store = store;
+            this.row = row;
+            this.reviews = reviews;
+            this.summary = summary;
+        }
+
+        int id()
+        {
+            return (product != null) ? product.getId() : store.id(row);
+        }
+
+        Product product()
+        {
+            return (product != null) ? product : store.product(row);
+        }
+
+        /**
+         * The same product, object or row, with other reviews.
+         **/
+        Entry withReviews(List<Review> reviews, RatingSummary summary)
+        {
+            return new Entry(product, store, row, reviews, summary);
+        }
+
+        List<Review> reviews()
+        {
+            return reviews;
+        }
+
+        /**
+         * Summary of the reviews, shared with every reader; never modify it.
+         **/
+        RatingSummary summary()
+        {
+            RatingSummary result = summary;
+            if (result == null) {
+                result = new RatingSummary(reviews);
+                summary = result;
+            }
+            return result;
+        }
+
+        /**
+         * Summary of the reviews if known without loading them, otherwise {@code null}.
+         **/
+        RatingSummary knownSummary()
+        {
+            return summary;
+        }
+    }
+
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(0, 0, PersistentIntMap.empty());
+
+    private final long version;
+    private final long generation;
+    private final PersistentIntMap<Entry> entries;
+
+    private CatalogSnapshot(long version, long generation, PersistentIntMap<Entry> entries)
+    {
+        this.version = version;
+        this.generation = generation;
+        this.entries = entries;
+    }
+
+    CatalogSnapshot with(Entry entry)
+    {
+        return new CatalogSnapshot(version + 1, generation, entries.plus(entry.id(), entry));
+    }
+
+    CatalogSnapshot replaced(List<Entry> replacement)
+    {
+        int[] ids = new int[replacement.size()];
+        Object[] values = replacement.toArray();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = replacement.get(i).id();
+        }
+        return new CatalogSnapshot(version + 1, generation + 1, PersistentIntMap.of(ids, values));
+    }
+
+    /**
+     * Returns a snapshot with all the given entries put and all the given
+     * products removed, as one version.
+     **/
+    CatalogSnapshot changed(Collection<Entry> updated, Collection<Integer> removed)
+    {
+        PersistentIntMap<Entry> changed = entries;
+        for (Entry entry : updated) {
+            changed = changed.plus(entry.id(), entry);
+        }
+        for (int id : removed) {
+            changed = changed.minus(id);
+        }
+        return new CatalogSnapshot(version + 1, generation, changed);
+    }
+
+    /**
+     * Number of times the whole catalog was replaced. Within one generation
+     * the review list of a product only ever grows, unless the product is
+     * changed by {@link #changed(Collection, Collection)}.
+     **/
+    long generation()
+    {
+        return generation;
+    }
+
+    Entry entry(int id)
+    {
+        return entries.get(id);
+    }
+
+    Iterable<Entry> entries()
+    {
+        return entries;
+    }
+
+    /**
+     * The catalog as a map from product to reviews, for bulk writers.
+     **/
+    Map<Product, List<Review>> asMap()
+    {
+        return new AbstractMap<>()
+        {
+            @Override
+            public Set<Map.Entry<Product, List<Review>>> entrySet()
+            {
+                return new AbstractSet<>()
+                {
+                    @Override
+                    public Iterator<Map.Entry<Product, List<Review>>> iterator()
+                    {
+                        Iterator<CatalogSnapshot.Entry> iterator = entries.iterator();
+                        return new Iterator<>()
+                        {
+                            @Override
+                            public boolean hasNext()
+                            {
+                                return iterator.hasNext();
+                            }
+
+                            @Override
+                            public Map.Entry<Product, List<Review>> next()
+                            {
+                                CatalogSnapshot.Entry entry = iterator.next();
+                                return new SimpleImmutableEntry<>(entry.product(), entry.reviews());
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size()
+                    {
+                        return entries.size();
+                    }
+                };
+            }
+        };
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public Optional<Product> findProduct(int id)
+    {
+        Entry entry = entries.get(id);
+        return Optional.ofNullable(entry == null ? null : entry.product());
+    }
+
+    public List<Review> getReviews(int id)
+    {
+        Entry entry = entries.get(id);
+        return entry == null ? List.of() : Collections.unmodifiableList(entry.reviews());
+    }
+
+    public Optional<RatingSummary> getRatingSummary(int id)
+    {
+        Entry entry = entries.get(id);
+        return Optional.ofNullable(entry == null ? null : entry.summary().copy());
+    }
+
+    public Stream<Product> products()
+    {
+        Spliterator<Entry> spliterator = Spliterators.spliterator(entries.iterator(), entries.size(),
+            Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        return StreamSupport.stream(spliterator, false).map(Entry::product);
+    }
+}
@@ -0,0 +1,169 @@
+package labs.pm.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parser of large review files. The file is mapped, cut into chunks that
+ * end at line breaks and the chunks are decoded and parsed as fork/join
+ * tasks, in the pool of the caller when it runs in one. Every chunk counts
+ * its ratings as it goes, so the summary of the file comes from adding up
+ * the chunk histograms. Lines that fail are parsed once more with their
+ * line number in the file, after all chunks are done, to report them as
+ * the sequential reader would.
+ **/
+final class ChunkedReviewReader
+{
+    static final int CHUNK_SIZE = 1 << 20;
+    private static final int RATINGS = Rating.values().length;
+
+    private ChunkedReviewReader()
+    {
+    }
+
+    /**
+     * Reviews of a file in file order together with their summary.
+     **/
+    static final class ParsedReviews extends AbstractList<Review> implements RandomAccess
+    {
+        private final Review[] reviews;
+        private final RatingSummary summary;
+
+        private ParsedReviews(Review[] reviews, RatingSummary summary)
+        {
+            this.reviews = reviews;
+            this.summary = summary;
+        }
+
+        RatingSummary summary()
+        {
+            return summary.copy();
+        }
+
+        @Override
+        public Review get(int index)
+        {
+            return reviews[index];
+        }
+
+        @Override
+        public int size()
+        {
+            return reviews.length;
+        }
+    }
+
+    private record Chunk(List<Review> reviews, int lines, int[] histogram, List<Integer> failedLines,
+                         List<String> failedText) {}
+
+    /**
+     * Reads a file of at most 2 GB in chunks of about {@code chunkSize} bytes.
+     **/
+    static ParsedReviews read(Path file, int chunkSize, DataLoader.Parser<Review> parser,
+                              Queue<LoadReport.Failure> failures) throws IOException
+    {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        List<ParseTask> tasks = new ArrayList<>();
+        int start = 0;
+        while (start < data.limit()) {
+            int end = Math.min(data.limit(), start + chunkSize);
+            while (end < data.limit() && data.get(end - 1) != '\n') {
+                end++;
+            }
+            tasks.add(new ParseTask(data.slice(start, end - start), parser));
+            start = end;
+        }
+        ForkJoinTask.invokeAll(tasks);
+        int count = 0;
+        for (ParseTask task : tasks) {
+            count += task.join().reviews().size();
+        }
+        Review[] reviews = new Review[count];
+        int[] histogram = new int[RATINGS];
+        int position = 0;
+        int line = 0;
+        for (ParseTask task : tasks) {
+            Chunk chunk = task.join();
+            for (Review review : chunk.reviews()) {
+                reviews[position++] = review;
+            }
+            for (int i = 0; i < RATINGS; i++) {
+                histogram[i] += chunk.histogram()[i];
+            }
+            for (int i = 0; i < chunk.failedLines().size(); i++) {
+                try {
+                    parser.parse(chunk.failedText().get(i), line + chunk.failedLines().get(i));
+                } catch (ProductManagerException e) {
+                    failures.add(new LoadReport.Failure(file, e.getMessage()));
+                }
+            }
+            line += chunk.lines();
+        }
+        return new ParsedReviews(reviews, new RatingSummary(histogram));
+    }
+
+    private static final class ParseTask extends RecursiveTask<Chunk>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer bytes;
+        private final DataLoader.Parser<Review> parser;
+
+        private ParseTask(ByteBuffer bytes, DataLoader.Parser<Review> parser)
+        {
+            this.bytes = bytes;
+            this.parser = parser;
+        }
+
+        @Override
+        protected Chunk compute()
+        {
+            CharBuffer text = StandardCharsets.UTF_8.decode(bytes);
+            List<Review> reviews = new ArrayList<>(text.length() / 32);
+            int[] histogram = new int[RATINGS];
+            List<Integer> failedLines = new ArrayList<>();
+            List<String> failedText = new ArrayList<>();
+            int lines = 0;
+            int start = 0;
+            int length = text.length();
+            while (start < length) {
+                int end = start;
+                while (end < length && text.get(end) != '\n') {
+                    end++;
+                }
+                int next = end + 1;
+                if (end > start && text.get(end - 1) == '\r') {
+                    end--;
+                }
+                CharSequence line = text.subSequence(start, end);
+                lines++;
+                try {
+                    Review review = parser.parse(line, lines);
+                    reviews.add(review);
+                    histogram[review.rating().ordinal()]++;
+                } catch (ProductManagerException e) {
+                    failedLines.add(lines);
+                    failedText.add(line.toString());
+                }
+                start = next;
+            }
+            return new Chunk(reviews, lines, histogram, failedLines, failedText);
+        }
+    }
+}
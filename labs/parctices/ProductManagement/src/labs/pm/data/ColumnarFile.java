@@ -0,0 +1,526 @@
+package labs.pm.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-file columnar export of the catalog, for analytics that would
+ * otherwise read one product and one review file per product.
+ * <pre>
+ * header    magic, version, product count, review count, footer offset
+ * chunks    the column chunks, column by column
+ * footer    per column: scale, chunk count, then per chunk its offset,
+ *           size, rows, encoding and min/max statistics
+ * </pre>
+ * Products and reviews are two tables of rows split into chunks of
+ * {@link #CHUNK_ROWS} rows. Reviews are stored grouped by product, in
+ * product row order. Types, ratings, price scales and the product ids of
+ * reviews are dictionary encoded, with the codes run-length encoded or,
+ * where runs are too short to pay off, packed one byte per row; ids,
+ * prices and dates are plain, and text is length prefixed UTF-8. Numeric
+ * chunks carry the minimum and maximum of their values so that a
+ * {@link #scan} can skip a chunk without decoding it.
+ * Obtain one through {@link #open(Path)}; write one with
+ * {@link ProductManager#exportColumnar(Path)}.
+ **/
+public final class ColumnarFile
+{
+    public static final int CHUNK_ROWS = 1 << 16;
+    private static final int MAGIC = 0x504D4346;
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 8 + 8;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private static final byte PLAIN_INT = 1;
+    private static final byte PLAIN_LONG = 2;
+    private static final byte DICTIONARY_RLE = 3;
+    private static final byte TEXT = 4;
+    private static final byte DICTIONARY_PACKED = 5;
+
+    public enum Column
+    {
+        PRODUCT_ID(false, PLAIN_INT),
+        /** {@code 'D'} or {@code 'F'} **/
+        PRODUCT_TYPE(false, DICTIONARY_RLE),
+        PRODUCT_NAME(false, TEXT),
+        /** Unscaled price at the scale of the column, see {@link #getScale} **/
+        PRODUCT_PRICE(false, PLAIN_LONG),
+        PRODUCT_PRICE_SCALE(false, DICTIONARY_RLE),
+        /** {@link Rating} ordinal **/
+        PRODUCT_RATING(false, DICTIONARY_RLE),
+        /** Epoch day, {@link Long#MIN_VALUE} for drinks **/
+        PRODUCT_BEST_BEFORE(false, PLAIN_LONG),
+        REVIEW_PRODUCT_ID(true, DICTIONARY_RLE),
+        /** {@link Rating} ordinal **/
+        REVIEW_RATING(true, DICTIONARY_RLE),
+        REVIEW_COMMENTS(true, TEXT);
+
+        private final boolean review;
+        private final byte encoding;
+
+        Column(boolean review, byte encoding)
+        {
+            this.review = review;
+            this.encoding = encoding;
+        }
+
+        public boolean isReviewColumn()
+        {
+            return review;
+        }
+
+        public boolean isNumeric()
+        {
+            return encoding != TEXT;
+        }
+    }
+
+    /**
+     * Rows and value range of one column chunk; text chunks have no range.
+     **/
+    public record ChunkStats(long firstRow, int rows, long min, long max) {}
+
+    @FunctionalInterface
+    public interface ValueConsumer
+    {
+        void accept(long row, long value);
+    }
+
+    private record Chunk(ChunkStats stats, int offset, int length, byte encoding) {}
+
+    private final ByteBuffer data;
+    private final int productCount;
+    private final long reviewCount;
+    private final Map<Column, List<Chunk>> chunks;
+    private final Map<Column, Integer> scales;
+
+    private ColumnarFile(ByteBuffer data, int productCount, long reviewCount,
+                         Map<Column, List<Chunk>> chunks, Map<Column, Integer> scales)
+    {
+        this.data = data;
+        this.productCount = productCount;
+        this.reviewCount = reviewCount;
+        this.chunks = chunks;
+        this.scales = scales;
+    }
+
+    public static ColumnarFile open(Path file) throws IOException
+    {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Columnar file " + file + " is too large to be mapped");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a columnar catalog file");
+        }
+        short version = data.getShort(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported columnar file version " + version + " in " + file);
+        }
+        int productCount = data.getInt(8);
+        long reviewCount = data.getLong(12);
+        ByteBuffer footer = data.duplicate().position((int) data.getLong(20));
+        Map<Column, List<Chunk>> chunks = new EnumMap<>(Column.class);
+        Map<Column, Integer> scales = new EnumMap<>(Column.class);
+        for (Column column : Column.values()) {
+            scales.put(column, footer.getInt());
+            int count = footer.getInt();
+            List<Chunk> columnChunks = new ArrayList<>(count);
+            long firstRow = 0;
+            for (int i = 0; i < count; i++) {
+                int offset = (int) footer.getLong();
+                int length = footer.getInt();
+                int rows = footer.getInt();
+                byte encoding = footer.get();
+                ChunkStats stats = new ChunkStats(firstRow, rows, footer.getLong(), footer.getLong());
+                columnChunks.add(new Chunk(stats, offset, length, encoding));
+                firstRow += rows;
+            }
+            chunks.put(column, columnChunks);
+        }
+        return new ColumnarFile(data, productCount, reviewCount, chunks, scales);
+    }
+
+    public int getProductCount()
+    {
+        return productCount;
+    }
+
+    public long getReviewCount()
+    {
+        return reviewCount;
+    }
+
+    /**
+     * Decimal scale of the values of a column; prices are stored unscaled
+     * at the largest scale of any price so that their ranges compare.
+     **/
+    public int getScale(Column column)
+    {
+        return scales.get(column);
+    }
+
+    public List<ChunkStats> getChunks(Column column)
+    {
+        List<ChunkStats> stats = new ArrayList<>();
+        chunks.get(column).forEach(chunk -> stats.add(chunk.stats()));
+        return stats;
+    }
+
+    /**
+     * Passes every value of a numeric column within {@code [min, max]} to
+     * {@code action} with its row, decoding only the chunks whose range
+     * overlaps it.
+     *
+     * @return the number of chunks skipped
+     **/
+    public int scan(Column column, long min, long max, ValueConsumer action)
+    {
+        if (!column.isNumeric()) {
+            throw new IllegalArgumentException(column + " is not numeric");
+        }
+        int skipped = 0;
+        for (Chunk chunk : chunks.get(column)) {
+            if (chunk.stats().max() < min || chunk.stats().min() > max) {
+                skipped++;
+                continue;
+            }
+            long[] values = decode(chunk);
+            long row = chunk.stats().firstRow();
+            for (long value : values) {
+                if (value >= min && value <= max) {
+                    action.accept(row, value);
+                }
+                row++;
+            }
+        }
+        return skipped;
+    }
+
+    private long[] decode(Chunk chunk)
+    {
+        ByteBuffer in = data.duplicate().position(chunk.offset());
+        long[] values = new long[chunk.stats().rows()];
+        switch (chunk.encoding()) {
+            case PLAIN_INT:
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.getInt();
+                }
+                break;
+            case PLAIN_LONG:
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.getLong();
+                }
+                break;
+            case DICTIONARY_RLE:
+            case DICTIONARY_PACKED:
+                long[] dictionary = new long[in.getInt()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = in.getLong();
+                }
+                if (chunk.encoding() == DICTIONARY_PACKED) {
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = dictionary[in.get() & 0xFF];
+                    }
+                    break;
+                }
+                int runs = in.getInt();
+                int position = 0;
+                for (int i = 0; i < runs; i++) {
+                    long value = dictionary[in.getInt()];
+                    int length = in.getInt();
+                    for (int j = 0; j < length; j++) {
+                        values[position++] = value;
+                    }
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown encoding " + chunk.encoding());
+        }
+        return values;
+    }
+
+    private long[] column(Column column, long rows)
+    {
+        long[] values = new long[(int) rows];
+        for (Chunk chunk : chunks.get(column)) {
+            long[] decoded = decode(chunk);
+            System.arraycopy(decoded, 0, values, (int) chunk.stats().firstRow(), decoded.length);
+        }
+        return values;
+    }
+
+    private String[] text(Column column, long rows)
+    {
+        String[] values = new String[(int) rows];
+        for (Chunk chunk : chunks.get(column)) {
+            ByteBuffer in = data.duplicate().position(chunk.offset());
+            int first = (int) chunk.stats().firstRow();
+            int[] lengths = new int[chunk.stats().rows()];
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = in.getInt();
+            }
+            for (int i = 0; i < lengths.length; i++) {
+                byte[] bytes = new byte[lengths[i]];
+                in.get(bytes);
+                values[first + i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads the whole catalog back, products in the order they were written.
+     **/
+    Map<Product, List<Review>> read()
+    {
+        long[] ids = column(Column.PRODUCT_ID, productCount);
+        long[] types = column(Column.PRODUCT_TYPE, productCount);
+        String[] names = text(Column.PRODUCT_NAME, productCount);
+        long[] prices = column(Column.PRODUCT_PRICE, productCount);
+        long[] priceScales = column(Column.PRODUCT_PRICE_SCALE, productCount);
+        long[] ratings = column(Column.PRODUCT_RATING, productCount);
+        long[] bestBefore = column(Column.PRODUCT_BEST_BEFORE, productCount);
+        long[] reviewProducts = column(Column.REVIEW_PRODUCT_ID, reviewCount);
+        long[] reviewRatings = column(Column.REVIEW_RATING, reviewCount);
+        String[] comments = text(Column.REVIEW_COMMENTS, reviewCount);
+        int priceScale = scales.get(Column.PRODUCT_PRICE);
+        Map<Product, List<Review>> products = new LinkedHashMap<>(productCount * 4 / 3 + 1);
+        Map<Integer, List<Review>> reviews = new HashMap<>(productCount * 4 / 3 + 1);
+        for (int i = 0; i < productCount; i++) {
+            int id = (int) ids[i];
+            BigDecimal price = BigDecimal.valueOf(prices[i], priceScale).setScale((int) priceScales[i]);
+            Rating rating = Rating.of((int) ratings[i]);
+            Product product = (types[i] == 'F')
+                ? new Food(id, names[i], price, rating, LocalDate.ofEpochDay(bestBefore[i]))
+                : new Drink(id, names[i], price, rating);
+            List<Review> productReviews = new ArrayList<>();
+            reviews.put(id, productReviews);
+            products.put(product, productReviews);
+        }
+        for (int i = 0; i < reviewProducts.length; i++) {
+            reviews.get((int) reviewProducts[i]).add(new Review(Rating.of((int) reviewRatings[i]), comments[i]));
+        }
+        return products;
+    }
+
+    /**
+     * Writes the catalog to {@code file} in the order of {@code products}.
+     *
+     * @return the size of the file
+     **/
+    static long write(Path file, Map<Product, List<Review>> products) throws IOException
+    {
+        List<Product> rows = new ArrayList<>(products.size());
+        List<Review> reviews = new ArrayList<>();
+        List<Integer> reviewProducts = new ArrayList<>();
+        int priceScale = 0;
+        for (Map.Entry<Product, List<Review>> entry : products.entrySet()) {
+            Product product = entry.getKey();
+            rows.add(product);
+            priceScale = Math.max(priceScale, product.getPrice().scale());
+            for (Review review : entry.getValue()) {
+                reviews.add(review);
+                reviewProducts.add(product.getId());
+            }
+        }
+        int scale = priceScale;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+            DataOutputStream footer = new DataOutputStream(footerBytes);
+            for (Column column : Column.values()) {
+                int count = column.isReviewColumn() ? reviews.size() : rows.size();
+                footer.writeInt(column == Column.PRODUCT_PRICE ? scale : 0);
+                footer.writeInt((count + CHUNK_ROWS - 1) / CHUNK_ROWS);
+                for (int first = 0; first < count; first += CHUNK_ROWS) {
+                    int length = Math.min(CHUNK_ROWS, count - first);
+                    long offset = channel.position();
+                    long[] stats = {Long.MAX_VALUE, Long.MIN_VALUE};
+                    byte[] encoded;
+                    byte encoding = column.encoding;
+                    if (column.isNumeric()) {
+                        long[] values = new long[length];
+                        for (int i = 0; i < length; i++) {
+                            values[i] = column.isReviewColumn()
+                                ? reviewValue(column, reviews.get(first + i), reviewProducts.get(first + i))
+                                : productValue(column, rows.get(first + i), scale);
+                            if (values[i] != NO_DATE) {
+                                stats[0] = Math.min(stats[0], values[i]);
+                                stats[1] = Math.max(stats[1], values[i]);
+                            }
+                        }
+                        if (encoding == DICTIONARY_RLE && packs(values)) {
+                            encoding = DICTIONARY_PACKED;
+                        }
+                        encoded = encode(encoding, values);
+                    } else {
+                        String[] values = new String[length];
+                        for (int i = 0; i < length; i++) {
+                            values[i] = column.isReviewColumn()
+                                ? reviews.get(first + i).comments() : rows.get(first + i).getName();
+                        }
+                        encoded = encode(values);
+                        stats[0] = 0;
+                        stats[1] = 0;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(encoded);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    footer.writeLong(offset);
+                    footer.writeInt(encoded.length);
+                    footer.writeInt(length);
+                    footer.writeByte(encoding);
+                    footer.writeLong(stats[0]);
+                    footer.writeLong(stats[1]);
+                }
+            }
+            long footerOffset = channel.position();
+            ByteBuffer buffer = ByteBuffer.wrap(footerBytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) 0)
+                .putInt(rows.size())
+                .putLong(reviews.size())
+                .putLong(footerOffset)
+                .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            return channel.size();
+        }
+    }
+
+    private static long productValue(Column column, Product product, int scale)
+    {
+        switch (column) {
+            case PRODUCT_ID:
+                return product.getId();
+            case PRODUCT_TYPE:
+                return product instanceof Food ? 'F' : 'D';
+            case PRODUCT_PRICE:
+                return product.getPrice().setScale(scale).unscaledValue().longValueExact();
+            case PRODUCT_PRICE_SCALE:
+                return product.getPrice().scale();
+            case PRODUCT_RATING:
+                return product.getRating().ordinal();
+            case PRODUCT_BEST_BEFORE:
+                return product instanceof Food ? product.getBestBefore().toEpochDay() : NO_DATE;
+            default:
+                throw new IllegalArgumentException(column.name());
+        }
+    }
+
+    private static long reviewValue(Column column, Review review, int productId)
+    {
+        return column == Column.REVIEW_PRODUCT_ID ? productId : review.rating().ordinal();
+    }
+
+    private static byte[] encode(byte encoding, long[] values) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length * 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        switch (encoding) {
+            case PLAIN_INT:
+                for (long value : values) {
+                    out.writeInt((int) value);
+                }
+                break;
+            case PLAIN_LONG:
+                for (long value : values) {
+                    out.writeLong(value);
+                }
+                break;
+            default:
+                Map<Long, Integer> codes = new LinkedHashMap<>();
+                for (long value : values) {
+                    codes.putIfAbsent(value, codes.size());
+                }
+                out.writeInt(codes.size());
+                for (long value : codes.keySet()) {
+                    out.writeLong(value);
+                }
+                if (encoding == DICTIONARY_PACKED) {
+                    for (long value : values) {
+                        out.writeByte(codes.get(value));
+                    }
+                    break;
+                }
+                out.writeInt(runs(values));
+                for (int i = 0; i < values.length; ) {
+                    int start = i;
+                    while (i < values.length && values[i] == values[start]) {
+                        i++;
+                    }
+                    out.writeInt(codes.get(values[start]));
+                    out.writeInt(i - start);
+                }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static int runs(long[] values)
+    {
+        int runs = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Whether one byte per row is smaller than eight bytes per run, and the
+     * dictionary codes fit a byte.
+     **/
+    private static boolean packs(long[] values)
+    {
+        if (runs(values) * 8L <= values.length) {
+            return false;
+        }
+        return Arrays.stream(values).distinct().limit(257).count() <= 256;
+    }
+
+    private static byte[] encode(String[] values) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[][] encoded = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(encoded[i].length);
+        }
+        for (byte[] value : encoded) {
+            out.write(value);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,252 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact, column oriented copy of the catalog.
+ * Products are kept as parallel primitive columns (id, price in minor
+ * units, rating, type, best-before epoch day, dictionary encoded name) and
+ * the reviews of all products as packed rating and comment address arrays,
+ * with the UTF-8 comments themselves in an off-heap arena of direct
+ * buffers. {@link Product} and {@link Review} objects are only created
+ * when a view is asked for them: the catalog entries of a store refer to
+ * their row, not to a product object.
+ * Review lists that are compact already, such as those of a memory-mapped
+ * snapshot, can be kept as they are instead of being packed.
+ **/
+final class ColumnarStore
+{
+    private static final int FIRST_CHUNK_SIZE = 1 << 16;
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final int[] ids;
+    private final long[] prices;
+    private final byte[] priceScales;
+    private final byte[] ratings;
+    private final boolean[] foods;
+    private final long[] bestBefore;
+    private final int[] names;
+    private final String[] dictionary;
+    private final List<List<Review>> kept;
+    private final int[] reviewStart;
+    private final int[] reviewCount;
+
+    private final byte[] reviewRatings;
+    private final long[] commentAddress;
+    private final int[] commentLength;
+    private final List<ByteBuffer> arena = new ArrayList<>();
+
+    private ColumnarStore(Map<Product, List<Review>> products, boolean packReviews)
+    {
+        int size = products.size();
+        long totalReviews = packReviews ? products.values().stream().mapToLong(List::size).sum() : 0;
+        if (totalReviews > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many reviews for a columnar store: " + totalReviews);
+        }
+        ids = new int[size];
+        prices = new long[size];
+        priceScales = new byte[size];
+        ratings = new byte[size];
+        foods = new boolean[size];
+        bestBefore = new long[size];
+        names = new int[size];
+        kept = packReviews ? null : new ArrayList<>(size);
+        reviewStart = new int[packReviews ? size : 0];
+        reviewCount = new int[packReviews ? size : 0];
+        reviewRatings = new byte[(int) totalReviews];
+        commentAddress = new long[(int) totalReviews];
+        commentLength = new int[(int) totalReviews];
+
+        Map<String, Integer> codes = new HashMap<>();
+        List<String> words = new ArrayList<>();
+        int row = 0;
+        int review = 0;
+        for (Map.Entry<Product, List<Review>> entry : products.entrySet()) {
+            Product product = entry.getKey();
+            BigDecimal price = product.getPrice();
+            if (price.unscaledValue().bitLength() > 63 || price.scale() != (byte) price.scale()) {
+                throw new IllegalArgumentException("Price " + price + " of product " + product.getId()
+                    + " does not fit in a columnar store");
+            }
+            ids[row] = product.getId();
+            prices[row] = price.unscaledValue().longValue();
+            priceScales[row] = (byte) price.scale();
+            ratings[row] = (byte) product.getRating().ordinal();
+            foods[row] = product instanceof Food;
+            bestBefore[row] = foods[row] ? product.getBestBefore().toEpochDay() : NO_DATE;
+            names[row] = codes.computeIfAbsent(product.getName(), name -> {
+                words.add(name);
+                return words.size() - 1;
+            });
+            if (!packReviews) {
+                kept.add(entry.getValue());
+                row++;
+                continue;
+            }
+            reviewStart[row] = review;
+            reviewCount[row] = entry.getValue().size();
+            for (Review r : entry.getValue()) {
+                byte[] comments = r.comments().getBytes(StandardCharsets.UTF_8);
+                reviewRatings[review] = (byte) r.rating().ordinal();
+                commentAddress[review] = store(comments);
+                commentLength[review] = comments.length;
+                review++;
+            }
+            row++;
+        }
+        dictionary = words.toArray(new String[0]);
+    }
+
+    /**
+     * Packs the products and their reviews.
+     *
+     * @throws IllegalArgumentException if a price or the number of reviews
+     *         does not fit in the columns
+     **/
+    static ColumnarStore of(Map<Product, List<Review>> products)
+    {
+        return new ColumnarStore(products, true);
+    }
+
+    /**
+     * Packs the products and keeps the review lists as they are.
+     *
+     * @throws IllegalArgumentException if a price does not fit in the columns
+     **/
+    static ColumnarStore ofProducts(Map<Product, List<Review>> products)
+    {
+        return new ColumnarStore(products, false);
+    }
+
+    private long store(byte[] bytes)
+    {
+        ByteBuffer chunk = arena.isEmpty() ? null : arena.get(arena.size() - 1);
+        if (chunk == null || chunk.remaining() < bytes.length) {
+            int capacity = (chunk == null) ? FIRST_CHUNK_SIZE : Math.min(CHUNK_SIZE, chunk.capacity() * 2);
+            chunk = ByteBuffer.allocateDirect(Math.max(capacity, bytes.length));
+            arena.add(chunk);
+        }
+        long address = ((long) (arena.size() - 1) << 32) | chunk.position();
+        chunk.put(bytes);
+        return address;
+    }
+
+    int size()
+    {
+        return ids.length;
+    }
+
+    int id(int row)
+    {
+        return ids[row];
+    }
+
+    Product product(int row)
+    {
+        BigDecimal price = BigDecimal.valueOf(prices[row], priceScales[row]);
+        Rating rating = Rating.of(ratings[row]);
+        return foods[row]
+            ? new Food(ids[row], dictionary[names[row]], price, rating, LocalDate.ofEpochDay(bestBefore[row]))
+            : new Drink(ids[row], dictionary[names[row]], price, rating);
+    }
+
+    Review review(int index)
+    {
+        byte[] comments = new byte[commentLength[index]];
+        long address = commentAddress[index];
+        arena.get((int) (address >>> 32)).get((int) address, comments);
+        return new Review(Rating.of(reviewRatings[index]), new String(comments, StandardCharsets.UTF_8));
+    }
+
+    RatingSummary summary(int row)
+    {
+        int[] histogram = new int[Rating.count()];
+        for (int i = reviewStart[row], end = i + reviewCount[row]; i < end; i++) {
+            histogram[reviewRatings[i]]++;
+        }
+        return new RatingSummary(histogram);
+    }
+
+    /**
+     * Builds the catalog entries of the store, one per row. Their products
+     * and packed reviews are views created when asked for.
+     **/
+    List<CatalogSnapshot.Entry> entries()
+    {
+        List<CatalogSnapshot.Entry> entries = new ArrayList<>(ids.length);
+        for (int row = 0; row < ids.length; row++) {
+            if (kept == null) {
+                entries.add(new CatalogSnapshot.Entry(this, row, new ColumnarReviews(row), summary(row)));
+            } else {
+                List<Review> reviews = kept.get(row);
+                entries.add(new CatalogSnapshot.Entry(this, row, reviews, ProductManager.summaryOf(reviews)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Heap taken by the columns; review lists kept as they are not counted.
+     **/
+    long heapBytes()
+    {
+        long bytes = 16L * 13
+            + 4L * ids.length + 8L * prices.length + priceScales.length + ratings.length + foods.length
+            + 8L * bestBefore.length + 4L * names.length + 4L * reviewStart.length + 4L * reviewCount.length
+            + reviewRatings.length + 8L * commentAddress.length + 4L * commentLength.length
+            + 4L * dictionary.length;
+        for (String word : dictionary) {
+            bytes += 40 + word.length();
+        }
+        return bytes;
+    }
+
+    long offHeapBytes()
+    {
+        return arena.stream().mapToLong(ByteBuffer::capacity).sum();
+    }
+
+    /**
+     * Read-only reviews of one product, decoded from the packed columns on
+     * access.
+     **/
+    final class ColumnarReviews extends AbstractList<Review> implements RandomAccess
+    {
+        private final int row;
+
+        private ColumnarReviews(int row)
+        {
+            this.row = row;
+        }
+
+        RatingSummary summary()
+        {
+            return ColumnarStore.this.summary(row);
+        }
+
+        @Override
+        public Review get(int index)
+        {
+            if (index < 0 || index >= reviewCount[row]) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return review(reviewStart[row] + index);
+        }
+
+        @Override
+        public int size()
+        {
+            return reviewCount[row];
+        }
+    }
+}
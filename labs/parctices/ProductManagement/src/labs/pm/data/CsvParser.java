@@ -0,0 +1,289 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * Single pass parser for the product and review data lines.
+ * Fields are read straight from the character sequence without regular
+ * expressions, {@code MessageFormat} or intermediate strings; only product
+ * names and review comments are materialised. Prices are parsed exactly
+ * into an unscaled value and a scale. Review comments escape backslashes
+ * and line breaks as {@code \\}, {@code \n} and {@code \r}, so that every
+ * review stays on one line; any other backslash is read as it is.
+ * Instances keep a cursor and are not thread safe, reuse one per thread.
+ **/
+final class CsvParser
+{
+    private CharSequence text;
+    private int line;
+    private int pos;
+    private int end;
+
+    private CsvParser reset(CharSequence text, int line)
+    {
+        this.text = text;
+        this.line = line;
+        this.pos = 0;
+        this.end = text.length();
+        return this;
+    }
+
+    Product parseProduct(CharSequence text, int line) throws ProductManagerException
+    {
+        reset(text, line);
+        char type = nextChar();
+        separator();
+        int id = nextInt();
+        separator();
+        String name = nextString();
+        separator();
+        BigDecimal price = nextDecimal();
+        separator();
+        Rating rating = Rateable.convert(nextInt());
+        switch (type) {
+            case 'F':
+                separator();
+                return new Food(id, name, price, rating, nextDate());
+            case 'D':
+                if (pos < end) {
+                    separator();
+                    nextDate();
+                }
+                finish();
+                return new Drink(id, name, price, rating);
+            default:
+                throw error(0, "unknown product type '" + type + "'");
+        }
+    }
+
+    Review parseReview(CharSequence text, int line) throws ProductManagerException
+    {
+        reset(text, line);
+        Rating rating = Rateable.convert(nextInt());
+        separator();
+        return new Review(rating, comments());
+    }
+
+    /**
+     * Parses an ingestion line, a review prefixed with its product id.
+     **/
+    ReviewEvent parseReviewEvent(CharSequence text, int line) throws ProductManagerException
+    {
+        reset(text, line);
+        int id = nextInt();
+        separator();
+        Rating rating = Rateable.convert(nextInt());
+        separator();
+        return new ReviewEvent(id, rating, comments());
+    }
+
+    private char nextChar() throws ProductManagerException
+    {
+        skipSpaces();
+        if (pos >= end) {
+            throw error(pos, "unexpected end of line");
+        }
+        return text.charAt(pos++);
+    }
+
+    private void separator() throws ProductManagerException
+    {
+        skipSpaces();
+        if (pos >= end || text.charAt(pos) != ',') {
+            throw error(pos, "expected ','");
+        }
+        pos++;
+    }
+
+    private void finish() throws ProductManagerException
+    {
+        skipSpaces();
+        if (pos < end) {
+            throw error(pos, "unexpected trailing data");
+        }
+    }
+
+    private void skipSpaces()
+    {
+        while (pos < end && text.charAt(pos) == ' ') {
+            pos++;
+        }
+    }
+
+    private String nextString()
+    {
+        int start = pos;
+        while (pos < end && text.charAt(pos) != ',') {
+            pos++;
+        }
+        return text.subSequence(start, pos).toString();
+    }
+
+    private String comments()
+    {
+        int escape = pos;
+        while (escape < end && text.charAt(escape) != '\\') {
+            escape++;
+        }
+        if (escape == end) {
+            return text.subSequence(pos, end).toString();
+        }
+        StringBuilder comments = new StringBuilder(end - pos).append(text, pos, escape);
+        for (pos = escape; pos < end; pos++) {
+            char c = text.charAt(pos);
+            char next = (pos + 1 < end) ? text.charAt(pos + 1) : 0;
+            if (c == '\\' && (next == '\\' || next == 'n' || next == 'r')) {
+                comments.append(next == 'n' ? '\n' : next == 'r' ? '\r' : '\\');
+                pos++;
+            } else {
+                comments.append(c);
+            }
+        }
+        return comments.toString();
+    }
+
+    private int nextInt() throws ProductManagerException
+    {
+        skipSpaces();
+        int start = pos;
+        boolean negative = pos < end && text.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (char c; pos < end && (c = text.charAt(pos)) >= '0' && c <= '9'; pos++, digits++) {
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw error(start, "integer out of range");
+            }
+        }
+        if (digits == 0) {
+            throw error(pos, "expected digit");
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw error(start, "integer out of range");
+        }
+        return (int) value;
+    }
+
+    private BigDecimal nextDecimal() throws ProductManagerException
+    {
+        skipSpaces();
+        int start = pos;
+        boolean negative = pos < end && text.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; pos < end; pos++) {
+            char c = text.charAt(pos);
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    throw error(start, "price has too many digits");
+                }
+                unscaled = unscaled * 10 + (c - '0');
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            throw error(pos, "expected price");
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, Math.max(scale, 0));
+    }
+
+    private LocalDate nextDate() throws ProductManagerException
+    {
+        skipSpaces();
+        int start = pos;
+        int year = fixedDigits(4);
+        expect('-');
+        int month = fixedDigits(2);
+        expect('-');
+        int day = fixedDigits(2);
+        finish();
+        try {
+            return LocalDate.of(year, month, day);
+        } catch (DateTimeException e) {
+            throw error(start, e.getMessage());
+        }
+    }
+
+    private int fixedDigits(int count) throws ProductManagerException
+    {
+        int value = 0;
+        for (int i = 0; i < count; i++, pos++) {
+            char c = pos < end ? text.charAt(pos) : 0;
+            if (c < '0' || c > '9') {
+                throw error(pos, "expected digit");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void expect(char c) throws ProductManagerException
+    {
+        if (pos >= end || text.charAt(pos) != c) {
+            throw error(pos, "expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private ProductManagerException error(int column, String message)
+    {
+        return new ProductManagerException("line " + line + ", column " + (column + 1) + ": " + message + " in \"" + text + "\"");
+    }
+
+    static String format(Product product)
+    {
+        return (product instanceof Food ? "F," : "D,") + product.getId() + ',' + product.getName() + ','
+            + product.getPrice().toPlainString() + ',' + product.getRating().ordinal() + ',' + product.getBestBefore();
+    }
+
+    static String format(Review review)
+    {
+        return review.rating().ordinal() + "," + escape(review.comments());
+    }
+
+    private static String escape(String comments)
+    {
+        if (comments.indexOf('\\') < 0 && comments.indexOf('\n') < 0 && comments.indexOf('\r') < 0) {
+            return comments;
+        }
+        StringBuilder escaped = new StringBuilder(comments.length() + 8);
+        for (int i = 0; i < comments.length(); i++) {
+            char c = comments.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static ThreadLocal<CsvParser> perThread()
+    {
+        return ThreadLocal.withInitial(CsvParser::new);
+    }
+}
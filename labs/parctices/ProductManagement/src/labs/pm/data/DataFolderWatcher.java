@@ -0,0 +1,130 @@
+package labs.pm.data;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static labs.pm.data.ProductManager.logger;
+
+/**
+ * Watches the data folder and hands the files created, modified or deleted
+ * in it to the manager in bursts: a burst ends once the folder has been
+ * quiet for the debounce interval, so a file written in several steps, or
+ * many files copied at once, are reloaded together and only once.
+ * Obtain one through {@link ProductManager#watchDataFolder()}.
+ **/
+public final class DataFolderWatcher implements AutoCloseable
+{
+    @FunctionalInterface
+    interface Sink
+    {
+        /**
+         * @param files changed files of the folder
+         * @param overflow whether changes were lost and the whole folder must be checked
+         **/
+        void changed(Set<Path> files, boolean overflow);
+    }
+
+    private final Path folder;
+    private final Sink sink;
+    private final long debounceNanos;
+    private final WatchService watcher;
+    private final Thread worker;
+    private final AtomicLong bursts = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+
+    DataFolderWatcher(Path folder, Duration debounce, Sink sink) throws IOException
+    {
+        this.folder = folder;
+        this.sink = sink;
+        this.debounceNanos = debounce.toNanos();
+        this.watcher = folder.getFileSystem().newWatchService();
+        folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        this.worker = new Thread(this::run, "data-folder-watcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void run()
+    {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean overflow = collect(key, changed);
+                long quietSince = System.nanoTime();
+                while ((key = watcher.poll(debounceNanos - (System.nanoTime() - quietSince), TimeUnit.NANOSECONDS)) != null) {
+                    overflow |= collect(key, changed);
+                    quietSince = System.nanoTime();
+                }
+                if (!changed.isEmpty() || overflow) {
+                    bursts.incrementAndGet();
+                    files.addAndGet(changed.size());
+                    try {
+                        sink.changed(changed, overflow);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Error reloading " + folder + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private boolean collect(WatchKey key, Set<Path> changed)
+    {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                changed.add(folder.resolve((Path) event.context()));
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /**
+     * Number of bursts of changes handed to the manager so far.
+     **/
+    public long getBursts()
+    {
+        return bursts.get();
+    }
+
+    /**
+     * Number of changed files handed to the manager so far, each counted
+     * once per burst.
+     **/
+    public long getFiles()
+    {
+        return files.get();
+    }
+
+    /**
+     * Stops watching; a burst being applied is finished first.
+     **/
+    @Override
+    public void close() throws IOException
+    {
+        watcher.close();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package labs.pm.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads every product file of the data folder together with its review file
+ * on a bounded fork/join pool. Each file handle is closed as soon as it has
+ * been read and every file that fails is reported instead of only logged.
+ **/
+final class DataLoader
+{
+    @FunctionalInterface
+    interface Parser<T>
+    {
+        T parse(CharSequence text, int line) throws ProductManagerException;
+    }
+
+    record Result(Map<Product, List<Review>> products, LoadReport report) {}
+
+    private final Path dataFolder;
+    private final String productFile;
+    private final String reviewFile;
+    private final Pattern productName;
+    private final Pattern reviewName;
+    private final int parallelism;
+    private final long chunkedThreshold;
+    private final Parser<Product> productParser;
+    private final Parser<Review> reviewParser;
+
+    /**
+     * @param chunkedThreshold size from which a review file is parsed in
+     *        parallel chunks rather than line by line
+     **/
+    DataLoader(Path dataFolder, String productFile, String reviewFile, int parallelism, long chunkedThreshold,
+               Parser<Product> productParser, Parser<Review> reviewParser)
+    {
+        this.dataFolder = dataFolder;
+        this.productFile = productFile;
+        this.reviewFile = reviewFile;
+        this.productName = namePattern(productFile);
+        this.reviewName = namePattern(reviewFile);
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.chunkedThreshold = chunkedThreshold;
+        this.productParser = productParser;
+        this.reviewParser = reviewParser;
+    }
+
+    Result load() throws IOException
+    {
+        return load(null);
+    }
+
+    /**
+     * Loads every product; when {@code lazyReviews} is given the review
+     * files are not read and each product gets the list it returns instead.
+     **/
+    Result load(Function<Product, List<Review>> lazyReviews) throws IOException
+    {
+        long start = System.nanoTime();
+        List<Path> productFiles;
+        try (Stream<Path> files = Files.list(dataFolder)) {
+            productFiles = files
+                .filter(file -> file.getFileName().toString().startsWith("product"))
+                .collect(Collectors.toList());
+        }
+        Map<Product, List<Review>> products = new ConcurrentHashMap<>(productFiles.size());
+        Queue<LoadReport.Failure> failures = new ConcurrentLinkedQueue<>();
+        AtomicInteger files = new AtomicInteger();
+        AtomicLong reviews = new AtomicLong();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> productFiles.parallelStream().forEach(file -> {
+                files.incrementAndGet();
+                Product product = loadProduct(file, failures);
+                if (product != null && lazyReviews != null) {
+                    products.put(product, lazyReviews.apply(product));
+                } else if (product != null) {
+                    Path reviewsPath = reviewsPath(product.getId());
+                    if (Files.exists(reviewsPath)) {
+                        files.incrementAndGet();
+                    }
+                    List<Review> loaded = loadReviews(reviewsPath, failures);
+                    reviews.addAndGet(loaded.size());
+                    products.put(product, loaded);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Loading of " + dataFolder + " was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error loading " + dataFolder, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        LoadReport report = new LoadReport(products.size(), reviews.get(), files.get(),
+            List.copyOf(failures), Duration.ofNanos(System.nanoTime() - start));
+        return new Result(products, report);
+    }
+
+    /**
+     * Reads the product file of {@code id} alone, or returns {@code null}
+     * when there is none.
+     **/
+    Product loadProduct(int id, Queue<LoadReport.Failure> failures)
+    {
+        Path file = dataFolder.resolve(productFile.replace("{0}", String.valueOf(id)));
+        return Files.exists(file) ? loadProduct(file, failures) : null;
+    }
+
+    private Product loadProduct(Path file, Queue<LoadReport.Failure> failures)
+    {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if (line == null) {
+                failures.add(new LoadReport.Failure(file, "Empty product file"));
+                return null;
+            }
+            return productParser.parse(line, 1);
+        } catch (IOException | ProductManagerException e) {
+            failures.add(new LoadReport.Failure(file, e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Id of the product a data file belongs to, or {@code null} when the
+     * file is neither a product file nor a review file.
+     **/
+    Integer idOf(Path file)
+    {
+        String name = file.getFileName().toString();
+        Matcher matcher = productName.matcher(name);
+        if (!matcher.matches()) {
+            matcher = reviewName.matcher(name);
+            if (!matcher.matches()) {
+                return null;
+            }
+        }
+        try {
+            return Integer.valueOf(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Pattern namePattern(String filePattern)
+    {
+        int at = filePattern.indexOf("{0}");
+        return Pattern.compile(Pattern.quote(filePattern.substring(0, at)) + "(-?\\d+)"
+            + Pattern.quote(filePattern.substring(at + 3)));
+    }
+
+    private Path reviewsPath(int id)
+    {
+        return dataFolder.resolve(reviewFile.replace("{0}", String.valueOf(id)));
+    }
+
+    List<Review> loadReviews(int id, Queue<LoadReport.Failure> failures)
+    {
+        return loadReviews(reviewsPath(id), failures);
+    }
+
+    private List<Review> loadReviews(Path file, Queue<LoadReport.Failure> failures)
+    {
+        List<Review> reviews = new ArrayList<>();
+        if (Files.notExists(file)) {
+            return reviews;
+        }
+        try {
+            long size = Files.size(file);
+            if (size >= chunkedThreshold && size <= Integer.MAX_VALUE) {
+                return ChunkedReviewReader.read(file, ChunkedReviewReader.CHUNK_SIZE, reviewParser, failures);
+            }
+        } catch (IOException e) {
+            failures.add(new LoadReport.Failure(file, e.getMessage()));
+            return reviews;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                try {
+                    reviews.add(reviewParser.parse(line, ++number));
+                } catch (ProductManagerException e) {
+                    failures.add(new LoadReport.Failure(file, e.getMessage()));
+                }
+            }
+        } catch (IOException e) {
+            failures.add(new LoadReport.Failure(file, e.getMessage()));
+        }
+        return reviews;
+    }
+}
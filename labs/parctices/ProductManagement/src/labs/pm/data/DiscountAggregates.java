@@ -0,0 +1,127 @@
+package labs.pm.data;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-rating discount totals kept up to date as products are added and
+ * re-rated. Every product contributes its full discount in minor units,
+ * Drinks to a happy hour total and Foods to a total for their best-before
+ * day, so the average discount of a rating at any moment is a division and
+ * needs no pass over the catalog.
+ **/
+final class DiscountAggregates
+{
+    private static final class Totals
+    {
+        private final LongAdder products = new LongAdder();
+        private final LongAdder drinks = new LongAdder();
+        private final Map<LocalDate, LongAdder> foods = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Average discounts of one time window, valid while nothing changes.
+     **/
+    record Averages(long version, LocalDate day, boolean discountTime, Map<Rating, Double> values) {}
+
+    private final Map<Rating, Totals> totals = new EnumMap<>(Rating.class);
+    private final AtomicLong version = new AtomicLong();
+
+    DiscountAggregates()
+    {
+        for (Rating rating : Rating.values()) {
+            totals.put(rating, new Totals());
+        }
+    }
+
+    void add(Product product)
+    {
+        update(product, 1);
+    }
+
+    void remove(Product product)
+    {
+        update(product, -1);
+    }
+
+    void rerate(Product previous, Product current)
+    {
+        if (previous.getRating() != current.getRating()) {
+            remove(previous);
+            add(current);
+        }
+    }
+
+    private void update(Product product, int sign)
+    {
+        Totals rating = totals.get(product.getRating());
+        long cents = sign * product.getFullDiscount().movePointRight(2).longValueExact();
+        rating.products.add(sign);
+        if (product instanceof Food) {
+            rating.foods.computeIfAbsent(product.getBestBefore(), d -> new LongAdder()).add(cents);
+        } else {
+            rating.drinks.add(cents);
+        }
+        version.incrementAndGet();
+    }
+
+    void clear()
+    {
+        for (Rating rating : Rating.values()) {
+            totals.put(rating, new Totals());
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns {@code previous} again when neither the catalog nor the time
+     * window (the day for Food, happy hour for Drink) changed since it was
+     * computed.
+     **/
+    Averages averages(Clock clock, Averages previous)
+    {
+        LocalDateTime now = LocalDateTime.now(clock);
+        LocalDate day = now.toLocalDate();
+        boolean discountTime = Drink.isDiscountTime(now.toLocalTime());
+        long current = version.get();
+        if (previous != null && previous.version() == current
+                && previous.day().equals(day) && previous.discountTime() == discountTime) {
+            return previous;
+        }
+        long[] cents = new long[Rating.values().length];
+        long[] products = new long[cents.length];
+        collect(day, discountTime, cents, products);
+        return new Averages(current, day, discountTime, averages(cents, products));
+    }
+
+    /**
+     * Adds the discount total and product count of every rating in the given
+     * time window to {@code cents} and {@code products}, indexed by rating
+     * ordinal, so that the totals of several catalogs can be combined.
+     **/
+    void collect(LocalDate day, boolean discountTime, long[] cents, long[] products)
+    {
+        totals.forEach((rating, t) -> {
+            LongAdder foods = t.foods.get(day);
+            products[rating.ordinal()] += t.products.sum();
+            cents[rating.ordinal()] += (discountTime ? t.drinks.sum() : 0) + (foods == null ? 0 : foods.sum());
+        });
+    }
+
+    static Map<Rating, Double> averages(long[] cents, long[] products)
+    {
+        Map<Rating, Double> values = new EnumMap<>(Rating.class);
+        for (Rating rating : Rating.values()) {
+            if (products[rating.ordinal()] > 0) {
+                values.put(rating, cents[rating.ordinal()] / 100.0 / products[rating.ordinal()]);
+            }
+        }
+        return values;
+    }
+}
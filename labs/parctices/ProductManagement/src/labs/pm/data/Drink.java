@@ -1,6 +1,7 @@
 package labs.pm.data;
 
 import java.math.BigDecimal;
+import java.time.Clock;
 import java.time.LocalDate;
 import java.time.LocalTime;
 
@@ -10,14 +11,17 @@ public final class Drink  extends Product
         super(id, name, price, rating);
     }
 
+    static final LocalTime DISCOUNT_START = LocalTime.of(17, 30);
+    static final LocalTime DISCOUNT_END = LocalTime.of(18, 30);
+
+    static boolean isDiscountTime(LocalTime time) {
+        return time.isAfter(DISCOUNT_START) && time.isBefore(DISCOUNT_END);
+    }
+
     @Override
-    public BigDecimal getDiscount() {
-        LocalTime now = LocalTime.now();
-        LocalTime startDiscountTime = LocalTime.of(17, 30);
-        LocalTime endDiscountTime = LocalTime.of(18, 30);
-    
-        return (now.isAfter(startDiscountTime) && now.isBefore(endDiscountTime))
-            ? super.getDiscount()
+    public BigDecimal getDiscount(Clock clock) {
+        return isDiscountTime(LocalTime.now(clock))
+            ? super.getDiscount(clock)
             : BigDecimal.ZERO;
     }
 
@@ -0,0 +1,103 @@
+package labs.pm.data;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events of {@link ProductManager} operations, recorded
+ * with {@code -XX:StartFlightRecording} or any JFR configuration that
+ * enables the {@code labs.pm} events.
+ **/
+final class Events
+{
+    private static final EventType REVIEW = EventType.getEventType(ProductReview.class);
+
+    private Events() {}
+
+    /**
+     * Whether a review event would be recorded, checked before creating one
+     * so that reviewing does not allocate while recording is off.
+     **/
+    static boolean isReviewEnabled()
+    {
+        return REVIEW.isEnabled();
+    }
+
+    @Name("labs.pm.Load")
+    @Label("Catalog Load")
+    @Category("Product Management")
+    static final class Load extends Event
+    {
+        @Label("Products")
+        int products;
+
+        @Label("Reviews")
+        long reviews;
+
+        @Label("Failures")
+        int failures;
+    }
+
+    @Name("labs.pm.Review")
+    @Label("Product Review")
+    @Category("Product Management")
+    static final class ProductReview extends Event
+    {
+        @Label("Product Id")
+        int productId;
+
+        @Label("Rating")
+        String rating;
+    }
+
+    @Name("labs.pm.Report")
+    @Label("Product Reports")
+    @Category("Product Management")
+    static final class Report extends Event
+    {
+        @Label("Requested")
+        int requested;
+
+        @Label("Written")
+        int written;
+
+        @Label("Unchanged")
+        int unchanged;
+
+        @Label("Failed")
+        int failed;
+    }
+
+    @Name("labs.pm.Dump")
+    @Label("Catalog Dump")
+    @Category("Product Management")
+    static final class Dump extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("labs.pm.Restore")
+    @Label("Catalog Restore")
+    @Category("Product Management")
+    static final class Restore extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Products")
+        int products;
+    }
+}
@@ -1,6 +1,7 @@
 package labs.pm.data;
 
 import java.math.BigDecimal;
+import java.time.Clock;
 import java.time.LocalDate;
 import java.util.Objects;
 
@@ -23,8 +24,8 @@ public final class Food  extends Product
     }
 
     @Override
-    public BigDecimal getDiscount() {
-        return (bestBefore.isEqual(LocalDate.now())) ? super.getDiscount() : BigDecimal.ZERO;
+    public BigDecimal getDiscount(Clock clock) {
+        return (bestBefore.isEqual(LocalDate.now(clock))) ? super.getDiscount(clock) : BigDecimal.ZERO;
     }
 
     @Override
@@ -0,0 +1,65 @@
+package labs.pm.data;
+
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics kept in memory, for tests and for reading them back from the
+ * application itself.
+ **/
+public final class InMemoryMetrics implements Metrics
+{
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final LatencyHistogram[] timers = new LatencyHistogram[Timer.values().length];
+
+    public InMemoryMetrics()
+    {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return true;
+    }
+
+    @Override
+    public void increment(Counter counter, long amount)
+    {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    @Override
+    public void record(Timer timer, long nanos)
+    {
+        timers[timer.ordinal()].record(nanos);
+    }
+
+    public long getCount(Counter counter)
+    {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public LatencyHistogram getLatency(Timer timer)
+    {
+        return timers[timer.ordinal()];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringJoiner text = new StringJoiner("\n");
+        for (Counter counter : Counter.values()) {
+            text.add(counter + ": " + getCount(counter));
+        }
+        for (Timer timer : Timer.values()) {
+            text.add(timer + ": " + getLatency(timer));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,27 @@
+package labs.pm.data;
+
+import java.time.Duration;
+
+/**
+ * Progress of a review ingestion: reviews submitted, applied, rejected for
+ * an unknown product or lost to a failed batch, and the latency of the
+ * batches they were applied in.
+ **/
+public record IngestionStats(long submitted, long applied, long rejected, long failed, long batches,
+                             Duration meanBatch, Duration p99Batch, Duration maxBatch, Duration elapsed)
+{
+    public double reviewsPerSecond()
+    {
+        long nanos = elapsed.toNanos();
+        return nanos == 0 ? 0 : applied * 1_000_000_000d / nanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d reviews submitted, %d applied, %d rejected, %d failed in %d batches "
+                + "(mean %d us, p99 %d us, max %d us) in %d ms (%.0f reviews/s)",
+            submitted, applied, rejected, failed, batches, meanBatch.toNanos() / 1000, p99Batch.toNanos() / 1000,
+            maxBatch.toNanos() / 1000, elapsed.toMillis(), reviewsPerSecond());
+    }
+}
@@ -0,0 +1,92 @@
+package labs.pm.data;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Buckets split every
+ * power of two into eight, so a percentile is reported within 12.5% of
+ * the true value whatever its magnitude.
+ **/
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos)
+    {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    private static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public Duration getMean()
+    {
+        long n = count.sum();
+        return Duration.ofNanos(n == 0 ? 0 : sum.sum() / n);
+    }
+
+    public Duration getMax()
+    {
+        return Duration.ofNanos(max.get());
+    }
+
+    /**
+     * Latency below which the given fraction of the recorded ones fall,
+     * {@code 0.99} for the 99th percentile.
+     **/
+    public Duration getPercentile(double fraction)
+    {
+        long n = count.sum();
+        long rank = (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * n);
+        long seen = 0;
+        for (int i = 0; i < buckets.length() && n > 0; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Duration.ofNanos(Math.min(upperBound(i), max.get()));
+            }
+        }
+        return Duration.ofNanos(max.get());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + ", mean=" + getMean() + ", p50=" + getPercentile(0.5)
+            + ", p99=" + getPercentile(0.99) + ", max=" + getMax();
+    }
+}
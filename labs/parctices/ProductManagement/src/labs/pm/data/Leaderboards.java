@@ -0,0 +1,307 @@
+package labs.pm.data;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Product ids kept in order of average rating, of review count and of
+ * discount, so the top of each is read off in the time of the products
+ * asked for rather than by sorting the catalog. A re-rate moves one
+ * product, in logarithmic time. Updates for different products may run
+ * concurrently, and callers re-check every id against the current catalog.
+ **/
+final class Leaderboards
+{
+    /**
+     * Rank of a product by its reviews. Products whose reviews are loaded on
+     * demand and not yet summarized rank by their rating with no reviews.
+     **/
+    private record Ranked(int id, double average, int count) {}
+
+    private record Discounted(int id, long cents) {}
+
+    private static final Comparator<Ranked> BEST_RATED = Comparator
+        .comparingDouble((Ranked r) -> -r.average())
+        .thenComparingInt(r -> -r.count())
+        .thenComparingInt(Ranked::id);
+    private static final Comparator<Ranked> MOST_REVIEWED = Comparator
+        .comparingInt((Ranked r) -> -r.count())
+        .thenComparingInt(Ranked::id);
+    private static final Comparator<Discounted> BEST_DISCOUNTED = Comparator
+        .comparingLong((Discounted d) -> -d.cents())
+        .thenComparingInt(Discounted::id);
+
+    private final Map<Integer, Ranked> ranks = new ConcurrentHashMap<>();
+    private final NavigableSet<Ranked> byRating = new ConcurrentSkipListSet<>(BEST_RATED);
+    private final NavigableSet<Ranked> byReviews = new ConcurrentSkipListSet<>(MOST_REVIEWED);
+    private final NavigableSet<Discounted> drinks = new ConcurrentSkipListSet<>(BEST_DISCOUNTED);
+    private final Map<LocalDate, NavigableSet<Discounted>> foods = new ConcurrentHashMap<>();
+    private final RecentReviews recent;
+
+    /**
+     * @param window number of minutes counted by {@link #mostReviewedRecently(long, int)}, at least one
+     **/
+    Leaderboards(int window)
+    {
+        if (window < 1) {
+            throw new IllegalArgumentException("Invalid leaderboard window " + window);
+        }
+        this.recent = new RecentReviews(window);
+    }
+
+    /**
+     * @param summary summary of the reviews of the product, {@code null} if not known yet
+     **/
+    void add(Product product, RatingSummary summary)
+    {
+        rank(product, summary);
+        Discounted discounted = discounted(product);
+        if (product instanceof Food) {
+            foods.computeIfAbsent(product.getBestBefore(), d -> new ConcurrentSkipListSet<>(BEST_DISCOUNTED))
+                .add(discounted);
+        } else {
+            drinks.add(discounted);
+        }
+    }
+
+    void rerate(Product product, RatingSummary summary)
+    {
+        rank(product, summary);
+    }
+
+    private void rank(Product product, RatingSummary summary)
+    {
+        Ranked ranked = (summary == null)
+            ? new Ranked(product.getId(), product.getRating().ordinal(), 0)
+            : new Ranked(product.getId(), summary.getAverage(), summary.getCount());
+        Ranked previous = ranks.put(product.getId(), ranked);
+        if (previous != null) {
+            byRating.remove(previous);
+            byReviews.remove(previous);
+        }
+        byRating.add(ranked);
+        byReviews.add(ranked);
+    }
+
+    void remove(Product product)
+    {
+        Ranked previous = ranks.remove(product.getId());
+        if (previous != null) {
+            byRating.remove(previous);
+            byReviews.remove(previous);
+        }
+        Discounted discounted = discounted(product);
+        if (product instanceof Food) {
+            foods.computeIfPresent(product.getBestBefore(), (day, ids) -> {
+                ids.remove(discounted);
+                return ids.isEmpty() ? null : ids;
+            });
+        } else {
+            drinks.remove(discounted);
+        }
+    }
+
+    private static Discounted discounted(Product product)
+    {
+        return new Discounted(product.getId(), product.getFullDiscount().movePointRight(2).longValueExact());
+    }
+
+    void clear()
+    {
+        ranks.clear();
+        byRating.clear();
+        byReviews.clear();
+        drinks.clear();
+        foods.clear();
+        recent.clear();
+    }
+
+    /**
+     * Counts {@code count} reviews of a product received at {@code millis}.
+     **/
+    void reviewed(int id, int count, long millis)
+    {
+        recent.add(id, count, millis / 60_000);
+    }
+
+    List<Integer> bestRated(int limit)
+    {
+        return ids(byRating, limit);
+    }
+
+    List<Integer> mostReviewed(int limit)
+    {
+        return ids(byReviews, limit);
+    }
+
+    /**
+     * Products with the most reviews received in the window up to {@code millis}.
+     **/
+    List<Integer> mostReviewedRecently(long millis, int limit)
+    {
+        return recent.top(millis / 60_000, limit);
+    }
+
+    /**
+     * Products discounted on {@code day}, largest discount first: drinks
+     * during discount time and foods on their best-before day.
+     **/
+    List<Integer> bestDiscounted(LocalDate day, boolean discountTime, int limit)
+    {
+        Iterator<Discounted> a = discountTime ? drinks.iterator() : Set.<Discounted>of().iterator();
+        NavigableSet<Discounted> due = foods.get(day);
+        Iterator<Discounted> b = (due == null) ? Set.<Discounted>of().iterator() : due.iterator();
+        List<Integer> ids = new ArrayList<>(Math.min(limit, 1024));
+        Discounted x = a.hasNext() ? a.next() : null;
+        Discounted y = b.hasNext() ? b.next() : null;
+        while (ids.size() < limit && (x != null || y != null)) {
+            Discounted next;
+            if (y == null || (x != null && BEST_DISCOUNTED.compare(x, y) <= 0)) {
+                next = x;
+                x = a.hasNext() ? a.next() : null;
+            } else {
+                next = y;
+                y = b.hasNext() ? b.next() : null;
+            }
+            if (next.cents() == 0) {
+                break;
+            }
+            ids.add(next.id());
+        }
+        return ids;
+    }
+
+    private static List<Integer> ids(NavigableSet<Ranked> board, int limit)
+    {
+        List<Integer> ids = new ArrayList<>(Math.min(limit, 1024));
+        Iterator<Ranked> ranked = board.iterator();
+        while (ids.size() < limit && ranked.hasNext()) {
+            ids.add(ranked.next().id());
+        }
+        return ids;
+    }
+
+    /**
+     * Review counts per product over a sliding window of minutes, kept as a
+     * ring of per-minute buckets of counters. Writers only add to the
+     * counter of their product in the bucket of the current minute; the
+     * ring is moved on, under the monitor, only when the minute changes.
+     * The ranking is built when asked for and kept until a review arrives
+     * or the window moves.
+     **/
+    private static final class RecentReviews
+    {
+        private record Bucket(long minute, Map<Integer, LongAdder> counts)
+        {
+            private Bucket(long minute)
+            {
+                this(minute, new ConcurrentHashMap<>());
+            }
+        }
+
+        private record Ranking(long minute, long reviews, List<Integer> ids) {}
+
+        private final AtomicReferenceArray<Bucket> buckets;
+        private final LongAdder reviews = new LongAdder();
+        private volatile long current = Long.MIN_VALUE;
+        private volatile Ranking ranking;
+
+        private RecentReviews(int window)
+        {
+            buckets = new AtomicReferenceArray<>(window);
+            for (int i = 0; i < window; i++) {
+                buckets.set(i, new Bucket(Long.MIN_VALUE));
+            }
+        }
+
+        /**
+         * Counts reviews of {@code minute}; reviews of a minute that already
+         * left the window, as with a clock going back, are not counted.
+         **/
+        private void add(int id, int count, long minute)
+        {
+            if (minute > current) {
+                roll(minute);
+            }
+            Bucket bucket = buckets.get(slot(minute));
+            if (bucket.minute() != minute) {
+                return;
+            }
+            LongAdder counter = bucket.counts().get(id);
+            if (counter == null) {
+                counter = bucket.counts().computeIfAbsent(id, k -> new LongAdder());
+            }
+            counter.add(count);
+            reviews.increment();
+        }
+
+        private List<Integer> top(long minute, int limit)
+        {
+            if (minute > current) {
+                roll(minute);
+            }
+            long seen = reviews.sum();
+            Ranking ranked = ranking;
+            if (ranked == null || ranked.minute() != minute || ranked.reviews() != seen) {
+                ranked = new Ranking(minute, seen, rank(minute));
+                ranking = ranked;
+            }
+            return ranked.ids().subList(0, Math.min(limit, ranked.ids().size()));
+        }
+
+        private List<Integer> rank(long minute)
+        {
+            Map<Integer, Long> totals = new HashMap<>();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket bucket = buckets.get(i);
+                if (bucket.minute() > minute - buckets.length() && bucket.minute() <= minute) {
+                    bucket.counts().forEach((id, count) -> totals.merge(id, count.sum(), Long::sum));
+                }
+            }
+            List<Integer> ids = new ArrayList<>(totals.keySet());
+            ids.sort(Comparator.comparingLong((Integer id) -> -totals.get(id)).thenComparingInt(id -> id));
+            return ids;
+        }
+
+        /**
+         * Starts empty buckets for the minutes after the current one up to
+         * {@code minute}, dropping the minutes that leave the window.
+         **/
+        private synchronized void roll(long minute)
+        {
+            if (minute <= current) {
+                return;
+            }
+            long first = (current == Long.MIN_VALUE) ? minute : Math.max(current + 1, minute - buckets.length() + 1);
+            for (long m = first; m <= minute; m++) {
+                buckets.set(slot(m), new Bucket(m));
+            }
+            current = minute;
+        }
+
+        private int slot(long minute)
+        {
+            return (int) Math.floorMod(minute, (long) buckets.length());
+        }
+
+        private synchronized void clear()
+        {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, new Bucket(Long.MIN_VALUE));
+            }
+            current = Long.MIN_VALUE;
+            ranking = null;
+        }
+    }
+}
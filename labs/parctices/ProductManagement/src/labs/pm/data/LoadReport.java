@@ -0,0 +1,33 @@
+package labs.pm.data;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Outcome of a bulk load of the data folder: what was read, how long it
+ * took and which files could not be loaded.
+ **/
+public record LoadReport(int products, long reviews, int files, List<Failure> failures, Duration elapsed)
+{
+    public record Failure(Path file, String message) {}
+
+    public double filesPerSecond()
+    {
+        long nanos = elapsed.toNanos();
+        return nanos == 0 ? 0 : files * 1_000_000_000d / nanos;
+    }
+
+    public double reviewsPerSecond()
+    {
+        long nanos = elapsed.toNanos();
+        return nanos == 0 ? 0 : reviews * 1_000_000_000d / nanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d products, %d reviews from %d files in %d ms (%.0f files/s, %.0f reviews/s), %d failures",
+            products, reviews, files, elapsed.toMillis(), filesPerSecond(), reviewsPerSecond(), failures.size());
+    }
+}
@@ -0,0 +1,46 @@
+package labs.pm.data;
+
+/**
+ * Receiver of the counters and latencies of {@link ProductManager}
+ * operations. Counters and timers are enum constants and values are
+ * primitives, so reporting allocates nothing; {@link #NONE} ignores
+ * everything and lets callers skip taking timestamps.
+ **/
+public interface Metrics
+{
+    enum Counter
+    {
+        PRODUCTS_LOADED,
+        REVIEWS_LOADED,
+        /** Data files that could not be read or parsed. **/
+        PARSE_ERRORS,
+        REVIEWS_INGESTED,
+        REPORTS_WRITTEN,
+        REPORTS_UNCHANGED,
+        DUMP_BYTES,
+        RESTORE_BYTES,
+        CACHE_HITS,
+        CACHE_MISSES
+    }
+
+    enum Timer
+    {
+        LOAD,
+        REVIEW,
+        REVIEW_BATCH,
+        REPORT,
+        DUMP,
+        RESTORE
+    }
+
+    Metrics NONE = new Metrics() {};
+
+    default boolean isEnabled()
+    {
+        return false;
+    }
+
+    default void increment(Counter counter, long amount) {}
+
+    default void record(Timer timer, long nanos) {}
+}
@@ -0,0 +1,326 @@
+package labs.pm.data;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Immutable map from int keys to values, a hash array mapped trie.
+ * Every node covers five bits of the key, so the trie is at most seven
+ * levels deep and an update copies only the nodes on the path to its key;
+ * everything else is shared with the map it was derived from. Keys are
+ * used as they are, which keeps dense ids in few, full nodes.
+ **/
+final class PersistentIntMap<V> implements Iterable<V>
+{
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(new Node(0, new Object[0]), 0);
+
+    private static final class Node
+    {
+        private final int bitmap;
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots)
+        {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private static final class Leaf
+    {
+        private final int key;
+        private final Object value;
+
+        private Leaf(int key, Object value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private PersistentIntMap(Node root, int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentIntMap<V> empty()
+    {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    /**
+     * Builds a map of {@code keys[i]} to {@code values[i]} directly, node by
+     * node, without the intermediate maps of repeated {@link #plus}; the
+     * last of equal keys wins.
+     **/
+    static <V> PersistentIntMap<V> of(int[] keys, Object[] values)
+    {
+        int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int[] size = new int[1];
+        Node root = build(keys, values, order, new int[keys.length], 0, keys.length, 0, size);
+        return new PersistentIntMap<>(root, size[0]);
+    }
+
+    /**
+     * Builds the node of the entries {@code order[from..to)} by a stable
+     * counting sort on the five key bits at {@code shift}.
+     **/
+    private static Node build(int[] keys, Object[] values, int[] order, int[] scratch,
+                              int from, int to, int shift, int[] size)
+    {
+        int[] counts = new int[MASK + 2];
+        for (int i = from; i < to; i++) {
+            counts[((keys[order[i]] >>> shift) & MASK) + 1]++;
+        }
+        int bitmap = 0;
+        for (int chunk = 0; chunk <= MASK; chunk++) {
+            if (counts[chunk + 1] > 0) {
+                bitmap |= 1 << chunk;
+            }
+            counts[chunk + 1] += counts[chunk];
+        }
+        int[] starts = counts.clone();
+        for (int i = from; i < to; i++) {
+            int entry = order[i];
+            scratch[from + starts[(keys[entry] >>> shift) & MASK]++] = entry;
+        }
+        System.arraycopy(scratch, from, order, from, to - from);
+        Object[] slots = new Object[Integer.bitCount(bitmap)];
+        int slot = 0;
+        for (int chunk = 0; chunk <= MASK; chunk++) {
+            int start = from + counts[chunk];
+            int end = from + counts[chunk + 1];
+            if (start == end) {
+                continue;
+            }
+            if (end - start == 1 || shift + BITS >= Integer.SIZE) {
+                int last = order[end - 1];
+                slots[slot++] = new Leaf(keys[last], values[last]);
+                size[0]++;
+            } else {
+                slots[slot++] = build(keys, values, order, scratch, start, end, shift + BITS, size);
+            }
+        }
+        return new Node(bitmap, slots);
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key)
+    {
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = 1 << ((key >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                return leaf.key == key ? (V) leaf.value : null;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    /**
+     * Returns a map with {@code key} mapped to {@code value}, sharing every
+     * node off the path to the key with this one.
+     **/
+    PersistentIntMap<V> plus(int key, V value)
+    {
+        boolean[] added = new boolean[1];
+        Node updated = put(root, 0, new Leaf(key, value), added);
+        return new PersistentIntMap<>(updated, added[0] ? size + 1 : size);
+    }
+
+    private static Node put(Node node, int shift, Leaf leaf, boolean[] added)
+    {
+        int bit = 1 << ((leaf.key >>> shift) & MASK);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            slots[index] = leaf;
+            System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+            added[0] = true;
+            return new Node(node.bitmap | bit, slots);
+        }
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Node) {
+            replacement = put((Node) slot, shift + BITS, leaf, added);
+        } else if (((Leaf) slot).key == leaf.key) {
+            replacement = leaf;
+        } else {
+            replacement = merge((Leaf) slot, leaf, shift + BITS);
+            added[0] = true;
+        }
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    /**
+     * Returns a map without {@code key}, or this map when it has no such key.
+     * A node left with a single leaf is replaced by that leaf, so removing
+     * keys undoes the nodes that adding them created.
+     **/
+    PersistentIntMap<V> minus(int key)
+    {
+        Object updated = remove(root, 0, key);
+        if (updated == root) {
+            return this;
+        }
+        if (updated instanceof Leaf) {
+            int bit = 1 << (((Leaf) updated).key & MASK);
+            updated = new Node(bit, new Object[] {updated});
+        }
+        return new PersistentIntMap<>(updated == null ? new Node(0, new Object[0]) : (Node) updated, size - 1);
+    }
+
+    /**
+     * @return {@code node} itself when the key is absent, {@code null} when the
+     * node is left empty, a leaf when only that leaf is left, else a new node
+     **/
+    private static Object remove(Node node, int shift, int key)
+    {
+        int bit = 1 << ((key >>> shift) & MASK);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Node) {
+            replacement = remove((Node) slot, shift + BITS, key);
+            if (replacement == slot) {
+                return node;
+            }
+        } else if (((Leaf) slot).key == key) {
+            replacement = null;
+        } else {
+            return node;
+        }
+        if (replacement == null) {
+            if (node.slots.length == 1) {
+                return null;
+            }
+            if (node.slots.length == 2 && node.slots[1 - index] instanceof Leaf) {
+                return node.slots[1 - index];
+            }
+            Object[] slots = new Object[node.slots.length - 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+            return new Node(node.bitmap & ~bit, slots);
+        }
+        if (replacement instanceof Leaf && node.slots.length == 1) {
+            return replacement;
+        }
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    private static Node merge(Leaf first, Leaf second, int shift)
+    {
+        int firstIndex = (first.key >>> shift) & MASK;
+        int secondIndex = (second.key >>> shift) & MASK;
+        if (firstIndex == secondIndex) {
+            return new Node(1 << firstIndex, new Object[] {merge(first, second, shift + BITS)});
+        }
+        return new Node((1 << firstIndex) | (1 << secondIndex),
+            firstIndex < secondIndex ? new Object[] {first, second} : new Object[] {second, first});
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super V> action)
+    {
+        forEach(root, (Consumer<Object>) action);
+    }
+
+    private static void forEach(Node node, Consumer<Object> action)
+    {
+        for (Object slot : node.slots) {
+            if (slot instanceof Leaf) {
+                action.accept(((Leaf) slot).value);
+            } else {
+                forEach((Node) slot, action);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<V> iterator()
+    {
+        return new Iterator<>()
+        {
+            private final Deque<Node> nodes = new ArrayDeque<>();
+            private final Deque<Integer> positions = new ArrayDeque<>();
+            private Leaf next;
+
+            {
+                nodes.push(root);
+                positions.push(0);
+                advance();
+            }
+
+            private void advance()
+            {
+                next = null;
+                while (next == null && !nodes.isEmpty()) {
+                    Node node = nodes.peek();
+                    int position = positions.pop();
+                    if (position == node.slots.length) {
+                        nodes.pop();
+                        continue;
+                    }
+                    positions.push(position + 1);
+                    Object slot = node.slots[position];
+                    if (slot instanceof Leaf) {
+                        next = (Leaf) slot;
+                    } else {
+                        nodes.push((Node) slot);
+                        positions.push(0);
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return next != null;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next()
+            {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                V value = (V) next.value;
+                advance();
+                return value;
+            }
+        };
+    }
+}
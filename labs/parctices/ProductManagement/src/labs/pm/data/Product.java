@@ -2,6 +2,7 @@ package labs.pm.data;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.time.Clock;
 import java.time.LocalDate;
 import java.util.Objects;
 
@@ -41,6 +42,14 @@ public sealed abstract class Product implements Rateable<Product> permits Food,
     public static final BigDecimal DISCOUNT_RATE = BigDecimal.valueOf(0.1);
 
     public BigDecimal getDiscount() {
+        return getDiscount(Clock.systemDefaultZone());
+    }
+
+    public BigDecimal getDiscount(Clock clock) {
+        return getFullDiscount();
+    }
+
+    BigDecimal getFullDiscount() {
         return price.multiply(DISCOUNT_RATE).setScale(2, RoundingMode.HALF_UP);
     }
 
@@ -2,38 +2,83 @@ package labs.pm.data;
 
 import java.io.*;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
-import java.text.ParseException;
-import java.time.DateTimeException;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.time.format.FormatStyle;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.io.File.*;
 
-public class ProductManager {
-    private Map<Product, List<Review>> products = new HashMap<>();
+public class ProductManager implements AutoCloseable {
+    private static final int STRIPES = 64;
+    private static final int DEFAULT_LEADERBOARD_WINDOW = 60;
+    /**
+     * Time in snapshot file names: fixed width, so that the name order is
+     * the time order {@link #restore()} picks the latest snapshot by.
+     **/
+    private static final DateTimeFormatter SNAPSHOT_TIME =
+        DateTimeFormatter.ofPattern("uuuuMMdd'T'HHmmss.SSSSSSSSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final AtomicReference<CatalogSnapshot> catalog = new AtomicReference<>(CatalogSnapshot.EMPTY);
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final CatalogIndex catalogIndex = new CatalogIndex();
+    private final DiscountAggregates discountAggregates = new DiscountAggregates();
+    private volatile FormattedDiscounts formattedDiscounts;
+    private volatile Clock clock = Clock.systemDefaultZone();
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
     public static final Logger logger = Logger.getLogger(ProductManager.class.getName());
 
-    private MessageFormat productFormat;
     private ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
-    private MessageFormat reviewFormat;
+    private final Leaderboards leaderboards = new Leaderboards(leaderboardWindow());
+    private static final ThreadLocal<CsvParser> parsers = CsvParser.perThread();
     private Path reportsFolder;
     private Path dataFolder;
     private Path tempFolder;
+    private LoadReport loadReport;
+    private DataLoader dataLoader;
+    private ReviewLog reviewLog;
+    private ReviewCache reviewCache;
+    /**
+     * Review index together with the catalog generation it was built from
+     * and the products reviewed since, which the next search indexes.
+     **/
+    private record IndexedReviews(ReviewIndex index, long generation, Set<Integer> reviewed) {}
+    private boolean reviewSearch;
+    private boolean columnar;
+    private final Object indexLock = new Object();
+    private volatile IndexedReviews indexedReviews;
+    private volatile Set<Integer> unindexed;
+    private Map<Integer, String> reportManifest;
+    private final Set<Integer> logged = ConcurrentHashMap.newKeySet();
+    private final Metrics metrics;
 
     private static final Map<String, ResourceFormatter> formatters = Map.of(
         "en-GB", new ResourceFormatter(Locale.UK),
@@ -47,7 +92,7 @@ public class ProductManager {
 
     public void changeLocale(String languageTag) 
     {
-        formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
+        formatter = formatterOf(languageTag);
     }
 
     public static Set<String> getSupportedLocales() 
@@ -56,40 +101,87 @@ public class ProductManager {
     }
 
     public ProductManager(Locale locale) 
+    {
+        this(locale, Metrics.NONE);
+    }
+
+    /**
+     * Creates an empty in-memory manager that loads no data and keeps no
+     * review log, as used for the shards of a {@link ShardedProductManager}.
+     **/
+    ProductManager(Locale locale, Metrics metrics)
     {
         this.formatter = formatters.getOrDefault(locale.toLanguageTag(), formatters.get("en-GB"));
+        this.metrics = metrics;
     }
 
     public ProductManager(String languageTag) 
+    {
+        this(languageTag, Metrics.NONE);
+    }
+
+    /**
+     * Creates a manager that reports its operations to {@code metrics},
+     * from loading the data on.
+     **/
+    public ProductManager(String languageTag, Metrics metrics)
     {
         this.formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
+        this.metrics = metrics;
         loadResourceBundle();
         initializeFields();
         loadAllData();
+        openReviewLog();
     }
 
     private void loadResourceBundle() 
     {
         try {
             config = ResourceBundle.getBundle("labs.pm.data.config");
-            System.out.println("Resource Bundle loaded successfully.");
-            System.out.println("Available keys: " + Arrays.toString(config.keySet().toArray()));
+            logger.log(Level.CONFIG, "Configuration keys: " + config.keySet());
         } catch (MissingResourceException e) {
             logger.log(Level.SEVERE, "Resource bundle not found: labs.pm.data.config", e);
         }
     }
     
     
+    /**
+     * Value of a configuration key; a {@code labs.pm.<key>} system property
+     * takes precedence over config.properties.
+     **/
+    private String setting(String key)
+    {
+        return System.getProperty("labs.pm." + key, config.getString(key));
+    }
+
+    /**
+     * Minutes counted by the most reviewed recently leaderboard. A setting
+     * that is not a whole number of at least one falls back to
+     * {@value #DEFAULT_LEADERBOARD_WINDOW}.
+     **/
+    private int leaderboardWindow()
+    {
+        String window = setting("leaderboards.window");
+        try {
+            int minutes = Integer.parseInt(window.trim());
+            if (minutes >= 1) {
+                return minutes;
+            }
+        } catch (NumberFormatException e) {
+            // falls back below
+        }
+        logger.log(Level.WARNING, "Invalid leaderboards.window \"" + window + "\", using "
+            + DEFAULT_LEADERBOARD_WINDOW + " minutes");
+        return DEFAULT_LEADERBOARD_WINDOW;
+    }
+
     private void initializeFields() 
     {
         if (config != null) {
             try {
-                reviewFormat = new MessageFormat(config.getString("review.data.format"));
-                productFormat = new MessageFormat(config.getString("product.data.format"));
-                reportsFolder = Path.of(config.getString("reports.folder"));
-                dataFolder = Path.of(config.getString("data.folder"));
-                tempFolder = Path.of(config.getString("temp.folder"));
-                System.out.println("Fields initialized successfully.");
+                reportsFolder = Path.of(setting("reports.folder"));
+                dataFolder = Path.of(setting("data.folder"));
+                tempFolder = Path.of(setting("temp.folder"));
             } catch (MissingResourceException e) {
                 logger.log(Level.SEVERE, "Missing key in resource bundle", e);
             }
@@ -99,100 +191,631 @@ public class ProductManager {
     }
     private void loadAllData() 
     {
+        DataLoader loader = new DataLoader(dataFolder, setting("product.data.file"), setting("review.data.file"),
+            Integer.parseInt(setting("data.load.parallelism")), Long.parseLong(setting("reviews.chunked.threshold")),
+            this::parseProduct, this::parseReview);
+        dataLoader = loader;
+        long start = System.nanoTime();
+        Events.Load event = new Events.Load();
+        event.begin();
         try {
-            dataFolder = Path.of("/Users/abel-hid/Desktop/oracle/labs/data");
-            products = Files.list(dataFolder)
-                .filter(file -> file.getFileName().toString().startsWith("product"))
-                .map(file -> loadProduct(file))
-                .filter(product -> product != null)
-                .collect(Collectors.toMap(
-                    product -> product,
-                    product -> loadReviews(product)
-                ));
+            DataLoader.Result result;
+            if (Boolean.parseBoolean(setting("reviews.lazy"))) {
+                reviewCache = new ReviewCache(Long.parseLong(setting("reviews.cache.weight")), metrics, id -> {
+                    Queue<LoadReport.Failure> failures = new ArrayDeque<>();
+                    List<Review> reviews = loader.loadReviews(id, failures);
+                    metrics.increment(Metrics.Counter.PARSE_ERRORS, failures.size());
+                    failures.forEach(f -> logger.log(Level.WARNING, "Error loading " + f.file() + ": " + f.message()));
+                    return reviews;
+                });
+                result = loader.load(reviewCache::lazyList);
+            } else {
+                result = loader.load();
+            }
+            if (reviewCache == null && Boolean.parseBoolean(setting("reviews.index"))) {
+                reviewSearch = true;
+            }
+            columnar = reviewCache == null && "columnar".equals(setting("reviews.storage"));
+            replaceAll(result.products(), true);
+            loadReport = result.report();
+            metrics.increment(Metrics.Counter.PRODUCTS_LOADED, loadReport.products());
+            metrics.increment(Metrics.Counter.REVIEWS_LOADED, loadReport.reviews());
+            metrics.increment(Metrics.Counter.PARSE_ERRORS, loadReport.failures().size());
+            metrics.record(Metrics.Timer.LOAD, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.products = loadReport.products();
+                event.reviews = loadReport.reviews();
+                event.failures = loadReport.failures().size();
+                event.commit();
+            }
+            logger.log(Level.INFO, "Loaded " + loadReport);
+            loadReport.failures().forEach(f ->
+                logger.log(Level.WARNING, "Error loading " + f.file() + ": " + f.message()));
         } catch (IOException e) 
         {
             logger.log(Level.SEVERE, "Error loading data: " + e.getMessage(), e);
         }
     }
-    @SuppressWarnings("unchecked")
-    public void restoreData() 
+
+    private void openReviewLog()
     {
-        try 
-        {
-            Path tempFile = Files.list(tempFolder)
-                .filter(path -> path.getFileName().toString().endsWith("tmp"))
-                .findFirst()
-                .orElseThrow();
-            try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(tempFile, StandardOpenOption.DELETE_ON_CLOSE)))
-            {
-                products = (HashMap) in.readObject();
-                logger.log(Level.INFO, "Data restored successfully from " + tempFile);
-                
+        try {
+            if (Files.notExists(tempFolder)) {
+                Files.createDirectories(tempFolder);
             }
-        } 
-        catch (IOException | ClassNotFoundException e)
-        {
+            reviewLog = new ReviewLog(tempFolder.resolve(setting("review.log.file")),
+                Boolean.parseBoolean(setting("review.log.sync")));
+            int replayed = reviewLog.replay((id, rating, comments) -> {
+                logged.add(id);
+                try {
+                    Product product = findProduct(id);
+                    ReentrantLock stripe = stripeOf(id);
+                    stripe.lock();
+                    try {
+                        applyReview(product, rating, comments);
+                    } finally {
+                        stripe.unlock();
+                    }
+                } catch (ProductManagerException e) {
+                    logger.log(Level.WARNING, "Review log entry skipped: " + e.getMessage());
+                }
+            });
+            logger.log(Level.INFO, "Replayed " + replayed + " reviews from " + reviewLog.getFile());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error opening review log: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Folds the reviews held in the review log back into the product and
+     * review data files, then empties the log.
+     **/
+    public void compactReviewLog()
+    {
+        if (reviewLog == null) {
+            return;
+        }
+        lockAll();
+        try {
+            int missing = 0;
+            for (Integer id : logged) {
+                CatalogSnapshot.Entry entry = catalog.get().entry(id);
+                if (entry == null) {
+                    missing++;
+                    continue;
+                }
+                List<String> lines = new ArrayList<>();
+                for (Review review : entry.reviews()) {
+                    lines.add(CsvParser.format(review));
+                }
+                writeDataFile(setting("product.data.file"), id, List.of(CsvParser.format(entry.product())));
+                writeDataFile(setting("review.data.file"), id, lines);
+                if (reviewCache != null) {
+                    reviewCache.invalidate(id);
+                    publish(new CatalogSnapshot.Entry(entry.product(), reviewCache.lazyList(entry.product()), entry.summary()));
+                }
+            }
+            if (missing == 0) {
+                reviewLog.reset();
+                logged.clear();
+                logger.log(Level.INFO, "Review log compacted into " + dataFolder);
+            } else {
+                logger.log(Level.WARNING, "Review log kept: " + missing + " logged products are not in the catalog");
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error compacting review log: " + e.getMessage(), e);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Starts reloading the products whose files are created, changed or
+     * deleted in the data folder, in bursts separated by the configured
+     * quiet interval.
+     **/
+    public DataFolderWatcher watchDataFolder() throws IOException
+    {
+        if (dataLoader == null) {
+            throw new IOException("No data folder is loaded");
+        }
+        return new DataFolderWatcher(dataFolder, Duration.ofMillis(Long.parseLong(setting("data.watch.debounce"))),
+            this::reload);
+    }
+
+    /**
+     * Re-reads the products of the changed files and publishes all of them,
+     * and the removal of those whose product file is gone, as one snapshot.
+     * A product with reviews in the review log is left alone until the log
+     * is compacted, as its files do not hold those reviews yet.
+     **/
+    private void reload(Set<Path> files, boolean overflow)
+    {
+        long start = System.nanoTime();
+        Set<Integer> ids = new TreeSet<>();
+        for (Path file : files) {
+            Integer id = dataLoader.idOf(file);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        if (overflow) {
+            catalog.get().entries().forEach(entry -> ids.add(entry.id()));
+            try (Stream<Path> listed = Files.list(dataFolder)) {
+                listed.map(dataLoader::idOf).filter(Objects::nonNull).forEach(ids::add);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error listing " + dataFolder + ": " + e.getMessage(), e);
+            }
+        }
+        Queue<LoadReport.Failure> failures = new ArrayDeque<>();
+        List<CatalogSnapshot.Entry> updated = new ArrayList<>();
+        Map<Product, List<Review>> loaded = new LinkedHashMap<>();
+        List<Integer> removed = new ArrayList<>();
+        int skipped = 0;
+        for (int id : ids) {
+            if (logged.contains(id)) {
+                skipped++;
+                continue;
+            }
+            int failed = failures.size();
+            Product product = dataLoader.loadProduct(id, failures);
+            if (product == null && failures.size() == failed) {
+                removed.add(id);
+            } else if (product != null && product.getId() != id) {
+                failures.add(new LoadReport.Failure(dataFolder, "Product file of " + id + " holds product " + product.getId()));
+            } else if (product != null && reviewCache != null) {
+                reviewCache.invalidate(id);
+                updated.add(new CatalogSnapshot.Entry(product, reviewCache.lazyList(product), null));
+            } else if (product != null) {
+                loaded.put(product, dataLoader.loadReviews(id, failures));
+            }
+        }
+        updated.addAll(entriesOf(loaded, true));
+        lockAll();
+        try {
+            CatalogSnapshot current = catalog.get();
+            updated.removeIf(entry -> logged.contains(entry.id()));
+            removed.removeIf(id -> current.entry(id) == null || logged.contains(id));
+            for (CatalogSnapshot.Entry entry : updated) {
+                CatalogSnapshot.Entry previous = current.entry(entry.id());
+                if (previous != null) {
+                    catalogIndex.remove(previous.product());
+                    discountAggregates.remove(previous.product());
+                    leaderboards.remove(previous.product());
+                }
+                catalogIndex.add(entry.product());
+                discountAggregates.add(entry.product());
+                leaderboards.add(entry.product(), entry.knownSummary());
+            }
+            for (int id : removed) {
+                Product previous = current.entry(id).product();
+                catalogIndex.remove(previous);
+                discountAggregates.remove(previous);
+                leaderboards.remove(previous);
+            }
+            synchronized (indexLock) {
+                catalog.set(current.changed(updated, removed));
+                IndexedReviews indexed = indexedReviews;
+                if (indexed != null && indexed.generation() == current.generation()) {
+                    for (CatalogSnapshot.Entry entry : updated) {
+                        indexed.index().removeProduct(entry.id());
+                        indexed.index().add(entry.id(), 0, entry.reviews());
+                    }
+                    removed.forEach(indexed.index()::removeProduct);
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+        metrics.increment(Metrics.Counter.PRODUCTS_LOADED, updated.size());
+        metrics.increment(Metrics.Counter.PARSE_ERRORS, failures.size());
+        metrics.record(Metrics.Timer.LOAD, System.nanoTime() - start);
+        logger.log(Level.INFO, "Reloaded " + updated.size() + " and removed " + removed.size() + " products of "
+            + files.size() + " changed files" + (overflow ? " after a missed change" : "")
+            + (skipped > 0 ? ", " + skipped + " kept until the review log is compacted" : ""));
+        failures.forEach(f -> logger.log(Level.WARNING, "Error loading " + f.file() + ": " + f.message()));
+    }
+
+    private void writeDataFile(String pattern, int id, List<String> lines) throws IOException
+    {
+        Path file = dataFolder.resolve(pattern.replace("{0}", String.valueOf(id)));
+        Path temp = file.resolveSibling(file.getFileName() + ".new");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close()
+    {
+        if (reviewLog != null) {
+            try {
+                reviewLog.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error closing review log: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    public Optional<CacheStats> getReviewCacheStats()
+    {
+        return Optional.ofNullable(reviewCache).map(ReviewCache::stats);
+    }
+
+    public LoadReport getLoadReport()
+    {
+        return loadReport;
+    }
+
+    public void restoreData() 
+    {
+        try {
+            restore();
+        } catch (IOException e) {
             logger.log(Level.SEVERE, "Error restoring data: " + e.getMessage(), e);
         }
-        finally
+    }
+
+    /**
+     * Restores the latest snapshot as {@link #restoreData()} does, failing
+     * with the error instead of logging it.
+     **/
+    void restore() throws IOException
+    {
+        long start = System.nanoTime();
+        Events.Restore event = new Events.Restore();
+        event.begin();
+        try (Stream<Path> files = Files.list(tempFolder))
         {
-            
+            Path tempFile = files
+                .filter(path -> path.getFileName().toString().endsWith(".snap"))
+                .max(Comparator.naturalOrder())
+                .orElseThrow(() -> new IOException("No snapshot found in " + tempFolder));
+            long bytes = Files.size(tempFile);
+            Map<Product, List<Review>> restored = SnapshotFile.read(tempFile);
+            replaceAll(restored, false);
+            Files.delete(tempFile);
+            metrics.increment(Metrics.Counter.RESTORE_BYTES, bytes);
+            metrics.record(Metrics.Timer.RESTORE, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.file = tempFile.toString();
+                event.bytes = bytes;
+                event.products = restored.size();
+                event.commit();
+            }
+            logger.log(Level.INFO, "Data restored successfully from " + tempFile);
         }
     }
  
     public void dumpData() 
     {
-        if (products.isEmpty()) 
+        try {
+            dump();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error dumping data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Dumps the catalog as {@link #dumpData()} does, failing with the error
+     * instead of logging it.
+     *
+     * @return the snapshot file, or {@code null} when there was no data to dump
+     **/
+    Path dump() throws IOException
+    {
+        CatalogSnapshot current = catalog.get();
+        if (current.size() == 0) 
         {
             logger.log(Level.INFO, "No data to dump.");
-        } 
-        else 
+            return null;
+        }
+        if (Files.notExists(tempFolder)) 
         {
-            try 
-            {
-                if (Files.notExists(tempFolder)) 
-                {
-                    Files.createDirectory(tempFolder);
+            Files.createDirectory(tempFolder);
+        }
+        Path tempFile = tempFolder.resolve(MessageFormat.format(setting("temp.data.file"),
+            SNAPSHOT_TIME.format(Instant.now())));
+        lockAll();
+        try {
+            long start = System.nanoTime();
+            Events.Dump event = new Events.Dump();
+            event.begin();
+            current = catalog.get();
+            long size = SnapshotFile.write(tempFile, current.asMap());
+            metrics.increment(Metrics.Counter.DUMP_BYTES, size);
+            metrics.record(Metrics.Timer.DUMP, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.file = tempFile.toString();
+                event.bytes = size;
+                event.commit();
+            }
+            catalog.set(current.replaced(List.of()));
+            catalogIndex.clear();
+            discountAggregates.clear();
+            leaderboards.clear();
+            indexedReviews = null;
+            unindexed = null;
+            formatters.values().forEach(ResourceFormatter::clearCache);
+            if (reviewCache != null) {
+                reviewCache.clear();
+            }
+            logger.log(Level.INFO, "Data dumped successfully to " + tempFile + " (" + size + " bytes)");
+            return tempFile;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Writes the current catalog to one columnar file for analytics, see
+     * {@link ColumnarFile}.
+     *
+     * @return the size of the file
+     **/
+    public long exportColumnar(Path file) throws IOException
+    {
+        CatalogSnapshot current = catalog.get();
+        long size = ColumnarFile.write(file, current.asMap());
+        logger.log(Level.INFO, "Exported " + current.size() + " products to " + file + " (" + size + " bytes)");
+        return size;
+    }
+
+    /**
+     * Replaces the catalog with the products and reviews of a columnar file
+     * written by {@link #exportColumnar(Path)}.
+     **/
+    public void importColumnar(Path file) throws IOException
+    {
+        ColumnarFile columns = ColumnarFile.open(file);
+        replaceAll(columns.read(), true);
+        logger.log(Level.INFO, "Imported " + columns.getProductCount() + " products and "
+            + columns.getReviewCount() + " reviews from " + file);
+    }
+
+    public List<ReviewHit> searchReviews(String query, int limit) throws ProductManagerException
+    {
+        return searchReviews(query, null, limit);
+    }
+
+    /**
+     * Finds reviews whose comments hold all terms of {@code query}, ranked
+     * by how often they hold them. Double-quoted terms must follow each
+     * other, and {@code OR} between groups of terms finds reviews matching
+     * either group; case and punctuation are ignored.
+     *
+     * @param ratings ratings of the reviews to find, {@code null} for any
+     **/
+    public List<ReviewHit> searchReviews(String query, Set<Rating> ratings, int limit) throws ProductManagerException
+    {
+        List<ReviewIndex.Hit> hits = reviewIndex().search(query, ratings, limit);
+        CatalogSnapshot current = catalog.get();
+        List<ReviewHit> found = new ArrayList<>(hits.size());
+        for (ReviewIndex.Hit hit : hits) {
+            CatalogSnapshot.Entry entry = current.entry(hit.productId());
+            if (entry != null && hit.position() < entry.reviews().size()) {
+                found.add(new ReviewHit(entry.product(), entry.reviews().get(hit.position()), hit.score()));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The review index, brought up to date with the current catalog: built
+     * from it on the first search and after the catalog was replaced,
+     * otherwise extended by the reviews of the products reviewed since.
+     * Writers only note which products they reviewed, so indexing is kept
+     * off their path.
+     **/
+    private ReviewIndex reviewIndex() throws ProductManagerException
+    {
+        if (!reviewSearch) {
+            throw new ProductManagerException("Review search is not enabled");
+        }
+        synchronized (indexLock) {
+            IndexedReviews indexed = indexedReviews;
+            List<Integer> reviewed = new ArrayList<>();
+            if (indexed != null) {
+                for (Iterator<Integer> ids = indexed.reviewed().iterator(); ids.hasNext(); ) {
+                    reviewed.add(ids.next());
+                    ids.remove();
                 }
-                Path tempFile = tempFolder.resolve(MessageFormat.format(config.getString("temp.data.file"), Instant.now()));
-                try (ObjectOutput out = new ObjectOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.CREATE)))
-                {
-                    out.writeObject(products);
-                    products = new HashMap<>();
-                    logger.log(Level.INFO, "Data dumped successfully to " + tempFile);
+            }
+            CatalogSnapshot current = catalog.get();
+            if (indexed == null || indexed.generation() != current.generation()) {
+                Set<Integer> pending = ConcurrentHashMap.newKeySet();
+                unindexed = pending;
+                current = catalog.get();
+                List<CatalogSnapshot.Entry> entries = new ArrayList<>(current.size());
+                current.entries().forEach(entries::add);
+                long start = System.nanoTime();
+                indexed = new IndexedReviews(ReviewIndex.build(entries), current.generation(), pending);
+                indexedReviews = indexed;
+                logger.log(Level.INFO, "Indexed " + indexed.index().size() + " reviews in "
+                    + Duration.ofNanos(System.nanoTime() - start).toMillis() + " ms");
+                return indexed.index();
+            }
+            ReviewIndex index = indexed.index();
+            for (int id : reviewed) {
+                CatalogSnapshot.Entry entry = current.entry(id);
+                if (entry != null) {
+                    int from = index.indexed(id);
+                    List<Review> reviews = entry.reviews();
+                    if (reviews.size() > from) {
+                        index.add(id, from, reviews.subList(from, reviews.size()));
+                    }
                 }
-            } 
-            catch (IOException e) 
-            {
-                logger.log(Level.SEVERE, "Error dumping data: " + e.getMessage(), e);
             }
+            return index;
         }
     }
 
-
     public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) 
     {
-        Product product = new Food(id, name, price, rating, bestBefore);
-        products.putIfAbsent(product, new ArrayList<>());
-        return product;
+        return addProduct(new Food(id, name, price, rating, bestBefore));
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating) 
     {
-        Product product = new Drink(id, name, price, rating);
-        products.putIfAbsent(product, new ArrayList<>());
+        return addProduct(new Drink(id, name, price, rating));
+    }
+
+    private Product addProduct(Product product)
+    {
+        ReentrantLock stripe = stripeOf(product.getId());
+        stripe.lock();
+        try {
+            if (catalog.get().entry(product.getId()) == null) {
+                RatingSummary summary = new RatingSummary();
+                publish(new CatalogSnapshot.Entry(product, List.of(), summary));
+                catalogIndex.add(product);
+                discountAggregates.add(product);
+                leaderboards.add(product, summary);
+            }
+        } finally {
+            stripe.unlock();
+        }
         return product;
     }
 
     public Product findProduct(int id) throws ProductManagerException 
     {
-        return products.keySet()
-            .stream()
-            .filter(p -> p.getId() == id)
-            .findFirst()
+        Product product = currentProduct(id);
+        if (product == null) {
+            throw new ProductManagerException("Product with id " + id + " not found");
+        }
+        return product;
+    }
+
+    public RatingSummary getRatingSummary(int id) throws ProductManagerException
+    {
+        return getCatalog().getRatingSummary(id)
             .orElseThrow(() -> new ProductManagerException("Product with id " + id + " not found"));
     }
 
+    /**
+     * Current state of the catalog; it stays unchanged however long it is
+     * read, while later changes are published as new snapshots.
+     **/
+    public CatalogSnapshot getCatalog()
+    {
+        return catalog.get();
+    }
+
+    /**
+     * Publishes a new snapshot with the given entry. Callers hold the stripe
+     * lock of the product, so concurrent publishers only ever race for
+     * different products and a retry merely re-applies the entry.
+     **/
+    private void publish(CatalogSnapshot.Entry entry)
+    {
+        catalog.updateAndGet(snapshot -> snapshot.with(entry));
+    }
+
+    private ReentrantLock stripeOf(int id)
+    {
+        return stripes[stripeIndex(id)];
+    }
+
+    private static int stripeIndex(int id)
+    {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private void lockAll()
+    {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAll()
+    {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * @param packReviews whether a columnar catalog packs the reviews too,
+     *        rather than keeping lists that are compact already
+     **/
+    private void replaceAll(Map<Product, List<Review>> data, boolean packReviews)
+    {
+        replaceEntries(entriesOf(data, packReviews));
+    }
+
+    /**
+     * Catalog entries of {@code data}: rows of a {@link ColumnarStore} when
+     * the catalog is columnar, otherwise the products and lists themselves.
+     **/
+    private List<CatalogSnapshot.Entry> entriesOf(Map<Product, List<Review>> data, boolean packReviews)
+    {
+        if (columnar && !data.isEmpty()) {
+            try {
+                ColumnarStore store = packReviews ? ColumnarStore.of(data) : ColumnarStore.ofProducts(data);
+                logger.log(Level.INFO, "Columnar store of " + store.size() + " products: " + store.heapBytes()
+                    + " bytes on heap, " + store.offHeapBytes() + " bytes off heap");
+                return store.entries();
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Products kept as objects: " + e.getMessage());
+            }
+        }
+        List<CatalogSnapshot.Entry> entries = new ArrayList<>(data.size());
+        data.forEach((p, reviews) -> entries.add(new CatalogSnapshot.Entry(p, reviews, summaryOf(reviews))));
+        return entries;
+    }
+
+    /**
+     * Summary of a review list, taken from the list where it keeps one, or
+     * {@code null} for lists loaded on demand.
+     **/
+    static RatingSummary summaryOf(List<Review> reviews)
+    {
+        if (reviews instanceof SnapshotFile.SnapshotReviews) {
+            return ((SnapshotFile.SnapshotReviews) reviews).summary();
+        } else if (reviews instanceof ColumnarStore.ColumnarReviews) {
+            return ((ColumnarStore.ColumnarReviews) reviews).summary();
+        } else if (reviews instanceof ChunkedReviewReader.ParsedReviews) {
+            return ((ChunkedReviewReader.ParsedReviews) reviews).summary();
+        } else if (reviews instanceof ReviewCache.CachedReviews) {
+            return null;
+        }
+        return new RatingSummary(reviews);
+    }
+
+    /**
+     * Replaces the whole catalog with {@code entries} and rebuilds the
+     * indexes from them. The review index is left to the next search,
+     * which builds it anew for the new generation of the catalog.
+     **/
+    void replaceEntries(List<CatalogSnapshot.Entry> entries)
+    {
+        lockAll();
+        try {
+            CatalogSnapshot replacement = catalog.get().replaced(entries);
+            catalog.set(replacement);
+            indexedReviews = null;
+            unindexed = null;
+            catalogIndex.clear();
+            discountAggregates.clear();
+            leaderboards.clear();
+            formatters.values().forEach(ResourceFormatter::clearCache);
+            replacement.entries().forEach(entry -> {
+                catalogIndex.add(entry.product());
+                discountAggregates.add(entry.product());
+                leaderboards.add(entry.product(), entry.knownSummary());
+            });
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private List<Product> snapshot()
+    {
+        return getCatalog().products().collect(Collectors.toList());
+    }
+
     public Product reviewProduct(int id, Rating rating, String comments) 
     {
         try {
@@ -203,105 +826,193 @@ public class ProductManager {
         }
     }
 
-    private Review parseReview(String text)
+    private Review parseReview(CharSequence text, int line) throws ProductManagerException
     {
-        Review review = null;
-        try {
-            Object[] values = reviewFormat.parse(text);
-            review = new Review(Rateable.convert(Integer.parseInt((String) values[0])), (String) values[1]);
-            
-        } catch (ParseException | NumberFormatException e)
-        {
-            logger.log(Level.WARNING, "Error parsing review: " + text, e.getMessage());
-        }
-        return review;
+        return parsers.get().parseReview(text, line);
     }
 
    
 
-    private Product loadProduct(Path file)
+    
+     
+    private Product parseProduct(CharSequence text, int line) throws ProductManagerException
     {
-        Product product = null;
-        dataFolder = Path.of(config.getString("data.folder"));
-        try 
-        {
-            product = parseProduct(Files.lines(dataFolder.resolve(file), Charset.forName("UTF-8"))
-            .findFirst()
-            .orElseThrow());
-        }
-        catch (IOException e)
-        {
-            logger.log(Level.WARNING, "Error loading product: " + e.getMessage());
-        }
-        return product;
+        return parsers.get().parseProduct(text, line);
     }
+    
 
-    private List<Review> loadReviews(Product product) 
+    public Product reviewProduct(Product product, Rating rating, String comments) 
     {
-        List<Review> reviews = new ArrayList<>();
-        Path file = dataFolder.resolve(MessageFormat.format(config.getString("review.data.file"), product.getId()));
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        Events.ProductReview event = null;
+        if (Events.isReviewEnabled()) {
+            event = new Events.ProductReview();
+            event.begin();
+        }
+        ReentrantLock stripe = stripeOf(product.getId());
+        stripe.lock();
         try {
-            if (Files.notExists(file)) {
-                System.out.println("Review file does not exist: " + file);
-            } else {
-                reviews = Files.lines(file, Charset.forName("UTF-8"))
-                    .map(text -> parseReview(text))
-                    .filter(review -> review != null)
-                    .collect(Collectors.toList());
+            if (reviewLog != null) {
+                reviewLog.append(product.getId(), rating, comments);
+                logged.add(product.getId());
             }
+            Product reviewed = applyReview(product, rating, comments);
+            leaderboards.reviewed(product.getId(), 1, clock.millis());
+            metrics.increment(Metrics.Counter.REVIEWS_INGESTED, 1);
+            return reviewed;
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Error loading reviews: " + e.getMessage(), e);
+            logger.log(Level.SEVERE, "Error logging review: " + e.getMessage(), e);
+            return null;
+        } finally {
+            stripe.unlock();
+            if (metrics.isEnabled()) {
+                metrics.record(Metrics.Timer.REVIEW, System.nanoTime() - start);
+            }
+            if (event != null && event.shouldCommit()) {
+                event.productId = product.getId();
+                event.rating = rating.name();
+                event.commit();
+            }
         }
-        return reviews;
     }
-    
-     
-    private Product parseProduct(String text)
+
+    /**
+     * Starts a pipeline that applies reviews submitted to it in batches;
+     * submitting blocks while {@code capacity} reviews are waiting.
+     **/
+    public ReviewIngestion openIngestion(int capacity, int batchSize)
+    {
+        return new ReviewIngestion(this::ingestBatch, metrics, capacity, batchSize);
+    }
+
+    public IngestionStats ingestReviews(Iterator<ReviewEvent> events) throws InterruptedException
     {
-        Product product = null;
-        productFormat = new MessageFormat("{0},{1},{2},{3},{4},{5}");
+        ReviewIngestion ingestion = openIngestion();
+        try (ingestion) {
+            while (events.hasNext()) {
+                ingestion.submit(events.next());
+            }
+        }
+        return ingestion.stats();
+    }
+
+    /**
+     * Ingests a file of {@code id,rating,comments} lines; lines that do not
+     * parse are logged and skipped.
+     **/
+    public IngestionStats ingestReviews(Path file) throws IOException, InterruptedException
+    {
+        CsvParser parser = new CsvParser();
+        ReviewIngestion ingestion = openIngestion();
+        try (ingestion; BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                try {
+                    ingestion.submit(parser.parseReviewEvent(line, ++number));
+                } catch (ProductManagerException e) {
+                    metrics.increment(Metrics.Counter.PARSE_ERRORS, 1);
+                    logger.log(Level.WARNING, "Skipped " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return ingestion.stats();
+    }
+
+    private ReviewIngestion openIngestion()
+    {
+        return openIngestion(Integer.parseInt(setting("ingest.queue.capacity")),
+            Integer.parseInt(setting("ingest.batch.size")));
+    }
+
+    /**
+     * Applies a batch of reviews: the stripes of all its products are
+     * locked, in stripe order as {@link #lockAll()} does, so the batch is
+     * logged with one append and applied before a compaction can truncate
+     * the log; then every product is re-rated once.
+     *
+     * @return the number of reviews applied; reviews of unknown products are not
+     **/
+    int ingestBatch(List<ReviewEvent> batch) throws IOException
+    {
+        BitSet touched = new BitSet(STRIPES);
+        for (ReviewEvent event : batch) {
+            touched.set(stripeIndex(event.productId()));
+        }
+        for (int i = touched.nextSetBit(0); i >= 0; i = touched.nextSetBit(i + 1)) {
+            stripes[i].lock();
+        }
         try {
-            Object[] values = productFormat.parse(text);
-            String type = (String) values[0];
-            int id = Integer.parseInt((String) values[1]);
-            String name = (String) values[2];
-            BigDecimal price = BigDecimal.valueOf(Double.parseDouble((String) values[3]));
-            Rating rating = Rateable.convert(Integer.parseInt((String) values[4]));
-            switch (type) {
-                case "F":
-                    product = new Food(id, name, price, rating, LocalDate.parse((String) values[5]));
-                    break;
-                case "D":
-                    product = new Drink(id, name, price, rating);
-                    break;
-            }
-        } catch (ParseException | NumberFormatException | DateTimeException e) {
-            logger.log(Level.WARNING, "Error parsing product: " + text, e.getMessage());
+            Map<Integer, List<Review>> byProduct = new LinkedHashMap<>();
+            List<ReviewEvent> accepted = new ArrayList<>(batch.size());
+            for (ReviewEvent event : batch) {
+                if (currentProduct(event.productId()) != null) {
+                    accepted.add(event);
+                    byProduct.computeIfAbsent(event.productId(), id -> new ArrayList<>())
+                        .add(new Review(event.rating(), event.comments()));
+                }
+            }
+            if (reviewLog != null && !accepted.isEmpty()) {
+                reviewLog.append(accepted);
+                logged.addAll(byProduct.keySet());
+            }
+            for (Map.Entry<Integer, List<Review>> entry : byProduct.entrySet()) {
+                Product product = currentProduct(entry.getKey());
+                applyReviews(product, entry.getValue());
+                leaderboards.reviewed(product.getId(), entry.getValue().size(), clock.millis());
+            }
+            metrics.increment(Metrics.Counter.REVIEWS_INGESTED, accepted.size());
+            return accepted.size();
+        } finally {
+            for (int i = touched.previousSetBit(STRIPES - 1); i >= 0; i = touched.previousSetBit(i - 1)) {
+                stripes[i].unlock();
+            }
         }
-        return product;
     }
-    
 
-    public Product reviewProduct(Product product, Rating rating, String comments) 
+    private Product applyReview(Product product, Rating rating, String comments)
     {
-        List<Review> reviews = products.get(product);
-        if (reviews == null) {
-            reviews = new ArrayList<>();
-            products.put(product, reviews);
+        return applyReviews(product, List.of(new Review(rating, comments)));
+    }
+
+    /**
+     * Adds reviews of one product, re-rates it once for all of them and
+     * publishes the result. Callers hold the stripe lock of the product.
+     * Products are immutable, so a product whose rating stays the same is
+     * kept rather than copied.
+     **/
+    private Product applyReviews(Product product, List<Review> added)
+    {
+        CatalogSnapshot.Entry entry = catalog.get().entry(product.getId());
+        Product previous = (entry == null) ? null : entry.product();
+        List<Review> reviews = (entry == null) ? List.of() : entry.reviews();
+        RatingSummary summary = (entry == null) ? new RatingSummary() : entry.summary().copy();
+        for (Review review : added) {
+            summary.add(review.rating());
+        }
+        Rating rating = summary.getRating();
+        if (previous == null) {
+            product = product.applyRating(rating);
+        } else {
+            product = (previous.getRating() == rating) ? previous : previous.applyRating(rating);
+        }
+        publish(new CatalogSnapshot.Entry(product, AppendedReviews.append(reviews, added), summary));
+        Set<Integer> reviewed = unindexed;
+        if (reviewed != null) {
+            reviewed.add(product.getId());
+        }
+        if (previous == null) {
+            catalogIndex.add(product);
+            discountAggregates.add(product);
+            leaderboards.add(product, summary);
+        } else {
+            catalogIndex.rerate(previous, product);
+            discountAggregates.rerate(previous, product);
+            leaderboards.rerate(product, summary);
         }
-        reviews.add(new Review(rating, comments));
-    
-        product = product.applyRating(Rateable.convert(
-            (int) Math.round(reviews.stream()
-                .mapToInt(r -> r.rating().ordinal())
-                .average()
-                .orElse(0))));
-    
-        products.remove(product);
-        products.put(product, reviews); 
         return product;
     }
-    
+
     public void printProductReport(int id)
     {
         try 
@@ -317,53 +1028,438 @@ public class ProductManager {
     
     public void printProductReport(Product product) throws IOException 
     {
-        System.out.println(formatter.formatProduct(product));
-        List<Review> reviews = products.getOrDefault(product, new ArrayList<>());
-        Collections.sort(reviews);
-    
-        Path productFile = reportsFolder.resolve(MessageFormat.format(config.getString("reports.file"), product.getId()));
-        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
-            Files.newOutputStream(productFile), "UTF-8")))
+        long start = System.nanoTime();
+        Events.Report event = new Events.Report();
+        event.begin();
+        ResourceFormatter reportFormatter = formatter;
+        ReportData data = reportData(product);
+        System.out.println(reportFormatter.formatProduct(data.product()));
+        String fingerprint = data.fingerprint(reportFormatter.locale);
+        writeReport(reportFormatter, data, reportFile(data.product().getId()));
+        Map<Integer, String> manifest = reportManifest();
+        manifest.put(data.product().getId(), fingerprint);
+        saveReportManifest(manifest);
+        metrics.increment(Metrics.Counter.REPORTS_WRITTEN, 1);
+        metrics.record(Metrics.Timer.REPORT, System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.requested = 1;
+            event.written = 1;
+            event.commit();
+        }
+    }
+
+    public ReportSummary printAllProductReports()
+    {
+        return printProductReports(snapshot().stream().map(Product::getId).collect(Collectors.toList()));
+    }
+
+    /**
+     * Writes the reports of the given products in parallel, skipping every
+     * report whose product and reviews did not change since it was written.
+     **/
+    public ReportSummary printProductReports(Collection<Integer> ids)
+    {
+        long start = System.nanoTime();
+        Events.Report event = new Events.Report();
+        event.begin();
+        ResourceFormatter reportFormatter = formatter;
+        CatalogSnapshot snapshot = catalog.get();
+        Map<Integer, String> manifest = reportManifest();
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+        Queue<LoadReport.Failure> failures = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = new ForkJoinPool(Integer.parseInt(setting("reports.parallelism")));
+        try {
+            pool.submit(() -> ids.parallelStream().forEach(id -> {
+                Path file = reportFile(id);
+                try {
+                    ReportData data = reportData(snapshot, id);
+                    String fingerprint = data.fingerprint(reportFormatter.locale);
+                    if (fingerprint.equals(manifest.get(id)) && Files.exists(file)) {
+                        unchanged.incrementAndGet();
+                    } else {
+                        long started = metrics.isEnabled() ? System.nanoTime() : 0;
+                        writeReport(reportFormatter, data, file);
+                        manifest.put(id, fingerprint);
+                        written.incrementAndGet();
+                        if (metrics.isEnabled()) {
+                            metrics.record(Metrics.Timer.REPORT, System.nanoTime() - started);
+                        }
+                    }
+                } catch (ProductManagerException | IOException e) {
+                    failures.add(new LoadReport.Failure(file, e.getMessage()));
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add(new LoadReport.Failure(reportsFolder, "Interrupted"));
+        } catch (ExecutionException e) {
+            failures.add(new LoadReport.Failure(reportsFolder, e.getCause().getMessage()));
+        } finally {
+            pool.shutdown();
+        }
+        try {
+            saveReportManifest(manifest);
+        } catch (IOException e) {
+            failures.add(new LoadReport.Failure(reportsFolder, "Error saving report manifest: " + e.getMessage()));
+        }
+        ReportSummary summary = new ReportSummary(ids.size(), written.get(), unchanged.get(),
+            List.copyOf(failures), Duration.ofNanos(System.nanoTime() - start));
+        metrics.increment(Metrics.Counter.REPORTS_WRITTEN, summary.written());
+        metrics.increment(Metrics.Counter.REPORTS_UNCHANGED, summary.unchanged());
+        if (event.shouldCommit()) {
+            event.requested = summary.requested();
+            event.written = summary.written();
+            event.unchanged = summary.unchanged();
+            event.failed = summary.failures().size();
+            event.commit();
+        }
+        logger.log(Level.INFO, "Reports: " + summary);
+        return summary;
+    }
+
+    private record ReportData(Product product, List<Review> reviews, RatingSummary summary)
+    {
+        /**
+         * Hash of everything the report shows, reviews included, so that a
+         * report is rewritten whenever a review of it changes.
+         **/
+        private String fingerprint(Locale locale)
         {
-            out.append(formatter.formatProduct(product)).append(System.lineSeparator());
-        
-            if (reviews.isEmpty()) {
-                out.append(formatter.getText("no.review")).append(System.lineSeparator());
-            } else {
-                out.append(reviews.stream()
-                    .map(r -> formatter.formatReview(r) + System.lineSeparator())
-                    .reduce(String::concat)
-                    .orElse(""));
+            long hash = hash(0xcbf29ce484222325L, locale.toLanguageTag() + '|' + CsvParser.format(product) + '|'
+                + summary.getCount() + '|' + summary.getSum());
+            for (Review review : reviews) {
+                hash = hash((hash ^ '|') * 0x100000001b3L, review.rating().name());
+                hash = hash((hash ^ '|') * 0x100000001b3L, review.comments());
             }
-            System.out.println(out);
+            return Long.toHexString(hash);
+        }
+
+        private static long hash(long hash, String text)
+        {
+            for (int i = 0; i < text.length(); i++) {
+                hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+            }
+            return hash;
         }
     }
-    
-    
-    
+
+    private ReportData reportData(CatalogSnapshot snapshot, int id) throws ProductManagerException
+    {
+        CatalogSnapshot.Entry entry = snapshot.entry(id);
+        if (entry == null) {
+            throw new ProductManagerException("Product with id " + id + " not found");
+        }
+        return new ReportData(entry.product(), new ArrayList<>(entry.reviews()), entry.summary());
+    }
+
+    private ReportData reportData(Product product)
+    {
+        CatalogSnapshot.Entry entry = catalog.get().entry(product.getId());
+        if (entry == null) {
+            return new ReportData(product, new ArrayList<>(), new RatingSummary());
+        }
+        return new ReportData(entry.product(), new ArrayList<>(entry.reviews()), entry.summary());
+    }
+
+    private Path reportFile(int id)
+    {
+        return reportsFolder.resolve(setting("reports.file").replace("{0}", String.valueOf(id)));
+    }
+
+    private void writeReport(ResourceFormatter reportFormatter, ReportData data, Path file) throws IOException
+    {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            formatReport(reportFormatter, data, out);
+        }
+    }
+
+    /**
+     * Renders the report of a product without writing a report file.
+     **/
+    void formatReport(Product product, BufferedWriter out) throws IOException
+    {
+        formatReport(formatter, reportData(product), out);
+    }
+
+    private static void formatReport(ResourceFormatter reportFormatter, ReportData data, BufferedWriter out) throws IOException
+    {
+        List<Review> reviews = data.reviews();
+        Collections.sort(reviews);
+        out.write(reportFormatter.formatProduct(data.product()));
+        out.newLine();
+        if (reviews.isEmpty()) {
+            out.write(reportFormatter.getText("no.review"));
+            out.newLine();
+        } else {
+            out.write(reportFormatter.formatDistribution(data.summary()));
+            out.newLine();
+            for (Review review : reviews) {
+                out.write(reportFormatter.formatReview(review));
+                out.newLine();
+            }
+        }
+    }
+
+    private synchronized Map<Integer, String> reportManifest()
+    {
+        if (reportManifest == null) {
+            reportManifest = new ConcurrentHashMap<>();
+            Path file = reportsFolder.resolve(setting("reports.manifest"));
+            if (Files.exists(file)) {
+                Properties stored = new Properties();
+                try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    stored.load(in);
+                    stored.forEach((id, fingerprint) ->
+                        reportManifest.put(Integer.valueOf((String) id), (String) fingerprint));
+                } catch (IOException | NumberFormatException e) {
+                    logger.log(Level.WARNING, "Report manifest ignored: " + e.getMessage());
+                }
+            }
+        }
+        return reportManifest;
+    }
+
+    /**
+     * Writes the manifest through a temporary file; synchronized, as single
+     * reports save it as well and would share that file.
+     **/
+    private synchronized void saveReportManifest(Map<Integer, String> manifest) throws IOException
+    {
+        Properties stored = new Properties();
+        manifest.forEach((id, fingerprint) -> stored.setProperty(String.valueOf(id), fingerprint));
+        Path file = reportsFolder.resolve(setting("reports.manifest"));
+        Path temp = file.resolveSibling(file.getFileName() + ".new");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            stored.store(out, null);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
     public void printProducts(Predicate<Product> filter, Comparator<Product> sorter) 
+    {
+        printProducts(query().where(filter).orderBy(sorter));
+    }
+
+    public void printProducts(ProductQuery query) 
+    {
+        System.out.println(formatProducts(formatter, query.list()));
+    }
+
+    /**
+     * Prints the products of the query formatted for {@code languageTag}
+     * rather than for the locale of this manager.
+     **/
+    public void printProducts(ProductQuery query, String languageTag)
+    {
+        System.out.println(formatProducts(formatterOf(languageTag), query.list()));
+    }
+
+    static String formatProducts(String languageTag, List<Product> products)
+    {
+        return formatProducts(formatterOf(languageTag), products);
+    }
+
+    private static String formatProducts(ResourceFormatter formatter, List<Product> products)
     {
         StringBuilder txt = new StringBuilder();
-        products.keySet().stream()
-            .sorted(sorter)
-            .filter(filter)
-            .forEach(p -> txt.append(formatter.formatProduct(p)).append("\n"));
-        System.out.println(txt);
+        products.forEach(p -> txt.append(formatter.formatProduct(p)).append("\n"));
+        return txt.toString();
+    }
+
+    private static ResourceFormatter formatterOf(String languageTag)
+    {
+        return formatters.getOrDefault(languageTag, formatters.get("en-GB"));
+    }
+
+    public ProductQuery query()
+    {
+        return new ProductQuery(this::execute);
+    }
+
+    List<Product> execute(ProductQuery query)
+    {
+        return execute(query, query.offset, query.limit);
+    }
+
+    /**
+     * Runs the query with its own offset and limit replaced, without
+     * changing it, so one query can run on several managers at once.
+     **/
+    List<Product> execute(ProductQuery query, int offset, int limit)
+    {
+        Collection<Integer> candidates = candidates(query);
+        CatalogSnapshot snapshot = catalog.get();
+        Stream<Product> matches = (candidates == null)
+            ? snapshot.products()
+            : candidates.stream().map(snapshot::entry).filter(Objects::nonNull).map(CatalogSnapshot.Entry::product);
+        matches = matches.filter(query::matches);
+        long keep = (long) offset + limit;
+        if (query.order == null) {
+            return matches.skip(offset).limit(limit).collect(Collectors.toList());
+        }
+        if (keep > Integer.MAX_VALUE / 2) {
+            return matches.sorted(query.order).skip(offset).limit(limit).collect(Collectors.toList());
+        }
+        PriorityQueue<Product> top = new PriorityQueue<>((int) Math.min(keep, 1024) + 1, query.order.reversed());
+        matches.forEach(p -> {
+            top.add(p);
+            if (top.size() > keep) {
+                top.poll();
+            }
+        });
+        List<Product> result = new ArrayList<>(top);
+        result.sort(query.order);
+        return result.subList(Math.min(offset, result.size()), result.size());
+    }
+
+    /**
+     * Picks the smallest candidate id set among the indexed filters of the
+     * query, or {@code null} when none applies and the catalog must be scanned.
+     **/
+    private Collection<Integer> candidates(ProductQuery query)
+    {
+        Collection<Integer> best = null;
+        if (query.ratings != null) {
+            if (query.ratings.size() == 1) {
+                best = catalogIndex.withRating(query.ratings.iterator().next());
+            } else {
+                List<Integer> ids = new ArrayList<>();
+                query.ratings.forEach(r -> ids.addAll(catalogIndex.withRating(r)));
+                best = ids;
+            }
+        }
+        Set<Integer> ofType = (query.type == null) ? null : catalogIndex.ofType(query.type);
+        if (ofType != null && (best == null || ofType.size() < best.size())) {
+            best = ofType;
+        }
+        if (query.hasPriceRange()) {
+            best = smallest(best, catalogIndex.withPrice(query.minPrice, query.maxPrice));
+        }
+        if (query.hasBestBeforeRange()) {
+            best = smallest(best, catalogIndex.withBestBefore(query.bestBeforeFrom, query.bestBeforeTo));
+        }
+        return best;
+    }
+
+    private static Collection<Integer> smallest(Collection<Integer> best, Collection<Set<Integer>> buckets)
+    {
+        int cap = (best == null) ? Integer.MAX_VALUE : best.size();
+        List<Integer> ids = new ArrayList<>();
+        for (Set<Integer> bucket : buckets) {
+            ids.addAll(bucket);
+            if (ids.size() >= cap) {
+                return best;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Best-rated products, by average rating and then by number of reviews.
+     **/
+    public List<Product> getBestRated(int limit)
+    {
+        return products(leaderboards.bestRated(limit));
+    }
+
+    public List<Product> getMostReviewed(int limit)
+    {
+        return products(leaderboards.mostReviewed(limit));
+    }
+
+    /**
+     * Products with the most reviews received by this manager within the
+     * configured number of minutes.
+     **/
+    public List<Product> getMostReviewedRecently(int limit)
+    {
+        return products(leaderboards.mostReviewedRecently(clock.millis(), limit));
+    }
+
+    /**
+     * Products discounted right now, largest discount first.
+     **/
+    public List<Product> getBestDiscounted(int limit)
+    {
+        LocalDateTime now = LocalDateTime.now(clock);
+        return products(leaderboards.bestDiscounted(now.toLocalDate(), Drink.isDiscountTime(now.toLocalTime()), limit));
+    }
+
+    private List<Product> products(List<Integer> ids)
+    {
+        CatalogSnapshot current = catalog.get();
+        List<Product> products = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            CatalogSnapshot.Entry entry = current.entry(id);
+            if (entry != null) {
+                products.add(entry.product());
+            }
+        }
+        return products;
+    }
+
+    private Product currentProduct(int id)
+    {
+        CatalogSnapshot.Entry entry = catalog.get().entry(id);
+        return entry == null ? null : entry.product();
     }
 
     public Map<String, String> getDiscounts() 
     {
-        return products.keySet().stream()
-            .collect(
-                Collectors.groupingBy(
-                    p -> p.getRating().getStars(),
-                    Collectors.collectingAndThen(
-                        Collectors.summarizingDouble(p -> p.getDiscount().doubleValue()),
-                        summary -> formatter.moneyFormat.format(summary.getAverage())
-                    )
-                )
-            );
+        return getDiscounts(formatter);
+    }
+
+    /**
+     * Average discounts formatted for {@code languageTag} rather than for
+     * the locale of this manager.
+     **/
+    public Map<String, String> getDiscounts(String languageTag)
+    {
+        return getDiscounts(formatterOf(languageTag));
+    }
+
+    private Map<String, String> getDiscounts(ResourceFormatter discountFormatter)
+    {
+        FormattedDiscounts cached = formattedDiscounts;
+        DiscountAggregates.Averages averages = discountAggregates.averages(clock,
+            (cached == null) ? null : cached.averages());
+        if (cached != null && cached.averages() == averages && cached.formatter() == discountFormatter) {
+            return cached.values();
+        }
+        cached = new FormattedDiscounts(averages, discountFormatter, formatDiscounts(discountFormatter, averages.values()));
+        formattedDiscounts = cached;
+        return cached.values();
+    }
+
+    static Map<String, String> formatDiscounts(String languageTag, Map<Rating, Double> averages)
+    {
+        return formatDiscounts(formatterOf(languageTag), averages);
+    }
+
+    private static Map<String, String> formatDiscounts(ResourceFormatter formatter, Map<Rating, Double> averages)
+    {
+        Map<String, String> values = new HashMap<>();
+        averages.forEach((rating, average) -> values.put(rating.getStars(), formatter.formatMoney(average)));
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Adds the discount totals of this manager for the given time window to
+     * {@code cents} and {@code products}, indexed by rating ordinal.
+     **/
+    void collectDiscounts(LocalDate day, boolean discountTime, long[] cents, long[] products)
+    {
+        discountAggregates.collect(day, discountTime, cents, products);
+    }
+
+    private record FormattedDiscounts(DiscountAggregates.Averages averages, ResourceFormatter formatter,
+                                      Map<String, String> values) {}
+
+    public void setClock(Clock clock)
+    {
+        this.clock = clock;
     }
 
     private static class ResourceFormatter 
@@ -371,7 +1467,10 @@ public class ProductManager {
         private ResourceBundle resources;
         private Locale locale;
         private DateTimeFormatter dateFormat;
-        private NumberFormat moneyFormat;
+        private ThreadLocal<Formats> formats;
+        private String foodText;
+        private String drinkText;
+        private Map<Integer, CachedHeader> headers = new ConcurrentHashMap<>();
     
         private ResourceFormatter(Locale locale) 
         {
@@ -386,29 +1485,78 @@ public class ProductManager {
                 resources = ResourceBundle.getBundle("labs.pm.data.resources", Locale.ENGLISH);
             }
             dateFormat = DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT).localizedBy(locale);
-            moneyFormat = NumberFormat.getCurrencyInstance(locale);
+            foodText = getSafeString("food");
+            drinkText = getSafeString("drink");
+            String productPattern = getSafeString("product");
+            String reviewPattern = getSafeString("review");
+            String distributionPattern = getSafeString("distribution");
+            formats = ThreadLocal.withInitial(() -> new Formats(
+                NumberFormat.getCurrencyInstance(locale),
+                new MessageFormat(productPattern, locale),
+                new MessageFormat(reviewPattern, locale),
+                new MessageFormat(distributionPattern, locale)));
+        }
+
+        /**
+         * Formats compiled once per thread, as neither {@link MessageFormat}
+         * nor {@link NumberFormat} is thread safe.
+         **/
+        private record Formats(NumberFormat money, MessageFormat product, MessageFormat review, MessageFormat distribution) {}
+
+        /**
+         * Rendered product line, valid as long as it is asked for the very
+         * same product instance; re-rating replaces the instance.
+         **/
+        private record CachedHeader(Product product, String name, BigDecimal price, LocalDate bestBefore, String text) {}
+
+        private String formatMoney(Object amount)
+        {
+            return formats.get().money().format(amount);
         }
     
         private String formatProduct(Product product) 
         {
+            LocalDate bestBefore = product.getBestBefore();
+            CachedHeader cached = headers.get(product.getId());
+            if (cached != null && cached.product() == product && cached.name() == product.getName()
+                    && cached.price() == product.getPrice() && cached.bestBefore().equals(bestBefore)) {
+                return cached.text();
+            }
             String type = null;
             if (product instanceof Food)
-                type = getSafeString("food");
+                type = foodText;
             else if (product instanceof Drink)
-                type = getSafeString("drink");
+                type = drinkText;
     
-            return MessageFormat.format(getSafeString("product"),
+            Formats f = formats.get();
+            String text = f.product().format(new Object[] {
                     product.getName(),
-                    moneyFormat.format(product.getPrice()),
+                    f.money().format(product.getPrice()),
                     product.getRating().getStars(),
-                    dateFormat.format(product.getBestBefore()),
-                    type);
+                    dateFormat.format(bestBefore),
+                    type});
+            headers.put(product.getId(), new CachedHeader(product, product.getName(), product.getPrice(), bestBefore, text));
+            return text;
         }
     
         private String formatReview(Review review) 
         {
-            return MessageFormat.format(getSafeString("review"),
-                    review.rating().getStars(), review.comments());
+            return formats.get().review().format(new Object[] {review.rating().getStars(), review.comments()});
+        }
+
+        private String formatDistribution(RatingSummary summary) 
+        {
+            StringJoiner counts = new StringJoiner(", ");
+            Rating[] ratings = Rating.values();
+            for (int i = ratings.length - 1; i > 0; i--) {
+                counts.add(ratings[i].getStars() + " " + summary.getCount(ratings[i]));
+            }
+            return formats.get().distribution().format(new Object[] {counts});
+        }
+
+        private void clearCache()
+        {
+            headers.clear();
         }
     
         private String getText(String key) 
@@ -0,0 +1,114 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Query over the products of a {@link ProductManager}. Rating, price, type
+ * and best-before filters are answered from the manager's secondary
+ * indexes; any other predicate is applied to the remaining candidates only.
+ * Obtain one through {@link ProductManager#query()} or
+ * {@link ShardedProductManager#query()}.
+ **/
+public final class ProductQuery
+{
+    private final Function<ProductQuery, List<Product>> executor;
+    Set<Rating> ratings;
+    BigDecimal minPrice;
+    BigDecimal maxPrice;
+    Class<? extends Product> type;
+    LocalDate bestBeforeFrom;
+    LocalDate bestBeforeTo;
+    Predicate<Product> filter = p -> true;
+    Comparator<Product> order;
+    int offset;
+    int limit = Integer.MAX_VALUE;
+
+    ProductQuery(Function<ProductQuery, List<Product>> executor)
+    {
+        this.executor = executor;
+    }
+
+    public ProductQuery rating(Rating first, Rating... more)
+    {
+        ratings = EnumSet.of(first, more);
+        return this;
+    }
+
+    public ProductQuery priceBetween(BigDecimal min, BigDecimal max)
+    {
+        minPrice = min;
+        maxPrice = max;
+        return this;
+    }
+
+    public ProductQuery type(Class<? extends Product> type)
+    {
+        this.type = type;
+        return this;
+    }
+
+    public ProductQuery bestBefore(LocalDate from, LocalDate to)
+    {
+        type = Food.class;
+        bestBeforeFrom = from;
+        bestBeforeTo = to;
+        return this;
+    }
+
+    public ProductQuery where(Predicate<Product> filter)
+    {
+        this.filter = this.filter.and(filter);
+        return this;
+    }
+
+    public ProductQuery orderBy(Comparator<Product> order)
+    {
+        this.order = order;
+        return this;
+    }
+
+    public ProductQuery offset(int offset)
+    {
+        this.offset = Math.max(0, offset);
+        return this;
+    }
+
+    public ProductQuery limit(int limit)
+    {
+        this.limit = Math.max(0, limit);
+        return this;
+    }
+
+    boolean hasPriceRange()
+    {
+        return minPrice != null || maxPrice != null;
+    }
+
+    boolean hasBestBeforeRange()
+    {
+        return bestBeforeFrom != null || bestBeforeTo != null;
+    }
+
+    boolean matches(Product product)
+    {
+        return (ratings == null || ratings.contains(product.getRating()))
+            && (minPrice == null || product.getPrice().compareTo(minPrice) >= 0)
+            && (maxPrice == null || product.getPrice().compareTo(maxPrice) <= 0)
+            && (type == null || type.isInstance(product))
+            && (bestBeforeFrom == null || !product.getBestBefore().isBefore(bestBeforeFrom))
+            && (bestBeforeTo == null || !product.getBestBefore().isAfter(bestBeforeTo))
+            && filter.test(product);
+    }
+
+    public List<Product> list()
+    {
+        return executor.apply(this);
+    }
+}
@@ -19,7 +19,7 @@ public interface Rateable<T>
     
     public static Rating convert(int stars)
     {
-        return (stars >= 0 && stars <= 5) ? Rating.values()[stars] : DEFAULT_RATING;
+        return (stars >= 0 && stars <= 5) ? Rating.of(stars) : DEFAULT_RATING;
     }
     
     public static int convert(Rating rating)
@@ -8,6 +8,8 @@ public enum Rating {
     FOUR_STAR("\u2605\u2605\u2605\u2605\u2606"),
     FIVE_STAR("\u2605\u2605\u2605\u2605\u2605");
 
+    private static final Rating[] VALUES = values();
+
     private String stars;
 
     Rating(String stars) {
@@ -18,4 +20,15 @@ public enum Rating {
         return stars;
     }
 
+    /**
+     * Rating of the given ordinal, without the copy {@link #values()} makes.
+     **/
+    static Rating of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    static int count() {
+        return VALUES.length;
+    }
+
 }
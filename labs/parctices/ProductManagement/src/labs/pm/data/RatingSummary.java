@@ -0,0 +1,63 @@
+package labs.pm.data;
+
+import java.util.Collection;
+
+/**
+ * Running review aggregate of a single product: review count, star sum and
+ * a histogram per {@link Rating}, so the average can be kept up to date in
+ * constant time as reviews are added.
+ **/
+public final class RatingSummary {
+    private final int[] histogram = new int[Rating.count()];
+    private int count;
+    private long sum;
+
+    RatingSummary() {
+    }
+
+    RatingSummary(Collection<Review> reviews) {
+        reviews.forEach(r -> add(r.rating()));
+    }
+
+    RatingSummary(int[] histogram) {
+        for (int i = 0; i < histogram.length; i++) {
+            this.histogram[i] = histogram[i];
+            sum += (long) i * histogram[i];
+            count += histogram[i];
+        }
+    }
+
+    RatingSummary copy() {
+        RatingSummary copy = new RatingSummary();
+        System.arraycopy(histogram, 0, copy.histogram, 0, histogram.length);
+        copy.count = count;
+        copy.sum = sum;
+        return copy;
+    }
+
+    void add(Rating rating) {
+        histogram[rating.ordinal()]++;
+        sum += rating.ordinal();
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public int getCount(Rating rating) {
+        return histogram[rating.ordinal()];
+    }
+
+    public double getAverage() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public Rating getRating() {
+        return Rateable.convert((int) Math.round(getAverage()));
+    }
+}
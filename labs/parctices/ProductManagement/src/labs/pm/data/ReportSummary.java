@@ -0,0 +1,24 @@
+package labs.pm.data;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Outcome of a batch report run: how many reports were requested, written
+ * and left untouched because neither the product nor its reviews changed.
+ **/
+public record ReportSummary(int requested, int written, int unchanged, List<LoadReport.Failure> failures, Duration elapsed)
+{
+    public double reportsPerSecond()
+    {
+        long nanos = elapsed.toNanos();
+        return nanos == 0 ? 0 : written * 1_000_000_000d / nanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d reports requested, %d written, %d unchanged, %d failures in %d ms (%.0f reports/s)",
+            requested, written, unchanged, failures.size(), elapsed.toMillis(), reportsPerSecond());
+    }
+}
@@ -0,0 +1,192 @@
+package labs.pm.data;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Least recently used cache of review lists read on demand from the review
+ * files. The cache is bounded by weight, the total number of cached
+ * reviews, rather than by the number of products.
+ **/
+final class ReviewCache
+{
+    private final Map<Integer, List<Review>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final IntFunction<List<Review>> loader;
+    private final Metrics metrics;
+    private final long maxWeight;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ReviewCache(long maxWeight, Metrics metrics, IntFunction<List<Review>> loader)
+    {
+        this.maxWeight = maxWeight;
+        this.metrics = metrics;
+        this.loader = loader;
+    }
+
+    List<Review> lazyList(Product product)
+    {
+        return new CachedReviews(product.getId());
+    }
+
+    List<Review> get(int id)
+    {
+        synchronized (this) {
+            List<Review> reviews = entries.get(id);
+            if (reviews != null) {
+                hits++;
+                metrics.increment(Metrics.Counter.CACHE_HITS, 1);
+                return reviews;
+            }
+            misses++;
+            metrics.increment(Metrics.Counter.CACHE_MISSES, 1);
+        }
+        List<Review> loaded = Collections.unmodifiableList(loader.apply(id));
+        synchronized (this) {
+            List<Review> existing = entries.putIfAbsent(id, loaded);
+            if (existing != null) {
+                return existing;
+            }
+            weight += weightOf(loaded);
+            Iterator<List<Review>> eldest = entries.values().iterator();
+            while (weight > maxWeight && entries.size() > 1) {
+                weight -= weightOf(eldest.next());
+                eldest.remove();
+                evictions++;
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * Drops the cached reviews of a product, once its review file changed.
+     **/
+    synchronized void invalidate(int id)
+    {
+        List<Review> removed = entries.remove(id);
+        if (removed != null) {
+            weight -= weightOf(removed);
+        }
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+        weight = 0;
+    }
+
+    synchronized CacheStats stats()
+    {
+        return new CacheStats(hits, misses, evictions, entries.size(), weight, maxWeight);
+    }
+
+    /**
+     * Returns {@code reviews} with every part that goes through the cache
+     * looked up once, for callers that walk the list by index.
+     **/
+    static List<Review> resolve(List<Review> reviews)
+    {
+        if (reviews instanceof CachedReviews) {
+            return ((CachedReviews) reviews).snapshot();
+        } else if (reviews instanceof AppendedReviews) {
+            return ((AppendedReviews) reviews).resolved();
+        }
+        return reviews;
+    }
+
+    private static long weightOf(List<Review> reviews)
+    {
+        return reviews.size() + 1L;
+    }
+
+    /**
+     * Read-only review list of one product that goes through the cache on
+     * every access. Every operation looks the list up once and counts as
+     * one hit or miss; to walk it by index, take a {@link #snapshot()}.
+     * Reviews added later are appended outside of it, see
+     * {@link AppendedReviews}, so they stay in memory until they are in the
+     * review file.
+     **/
+    final class CachedReviews extends AbstractList<Review> implements RandomAccess
+    {
+        private final int id;
+
+        private CachedReviews(int id)
+        {
+            this.id = id;
+        }
+
+        /**
+         * The reviews as they are cached now, looked up once.
+         **/
+        List<Review> snapshot()
+        {
+            return ReviewCache.this.get(id);
+        }
+
+        @Override
+        public Review get(int index)
+        {
+            return snapshot().get(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return snapshot().size();
+        }
+
+        @Override
+        public Iterator<Review> iterator()
+        {
+            return snapshot().iterator();
+        }
+
+        @Override
+        public ListIterator<Review> listIterator(int index)
+        {
+            return snapshot().listIterator(index);
+        }
+
+        @Override
+        public List<Review> subList(int fromIndex, int toIndex)
+        {
+            return snapshot().subList(fromIndex, toIndex);
+        }
+
+        @Override
+        public Spliterator<Review> spliterator()
+        {
+            return snapshot().spliterator();
+        }
+
+        @Override
+        public void forEach(Consumer<? super Review> action)
+        {
+            snapshot().forEach(action);
+        }
+
+        @Override
+        public Object[] toArray()
+        {
+            return snapshot().toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] a)
+        {
+            return snapshot().toArray(a);
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package labs.pm.data;
+
+/**
+ * Review of a product arriving from an upstream feed.
+ **/
+public record ReviewEvent(int productId, Rating rating, String comments) {}
@@ -0,0 +1,7 @@
+package labs.pm.data;
+
+/**
+ * Review found by {@link ProductManager#searchReviews(String, java.util.Set, int)};
+ * {@code score} counts the occurrences of the query terms in its comments.
+ **/
+public record ReviewHit(Product product, Review review, int score) {}
@@ -0,0 +1,646 @@
+package labs.pm.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Inverted index of review comments. Every review is a document numbered
+ * in the order it was indexed; every term has a posting list of the
+ * documents it occurs in, each with its positions, delta encoded as
+ * variable length ints. Every {@link #SKIP} documents a list records where
+ * decoding can resume, so intersections jump over the documents of common
+ * terms instead of decoding them.
+ * Lists are only ever appended to: a writer fills the array past the end
+ * readers can see and then publishes the new end, so searches take no
+ * locks. Documents of a product that is re-read are not removed but hidden,
+ * by remembering from which document on the product is current.
+ * The index remembers how many reviews of every product it holds, so that
+ * it can be brought up to date with a later snapshot of the catalog.
+ **/
+final class ReviewIndex
+{
+    private static final int SKIP = 128;
+
+    /**
+     * Matching review: its product, its index in the review list of the
+     * product and its score, the occurrences of the query terms.
+     **/
+    record Hit(int productId, int position, int score) {}
+
+    /**
+     * Visible part of a posting list: {@code length} bytes of
+     * (document delta, term frequency, size of positions, position deltas)
+     * and {@code skips} entries of (previous document, offset) from which
+     * decoding can start.
+     **/
+    private record Block(byte[] bytes, int length, int documents, int lastDocument,
+                         int[] skipDocuments, int[] skipOffsets, int skips)
+    {
+        private static final Block EMPTY = new Block(new byte[0], 0, 0, 0, new int[0], new int[0], 0);
+    }
+
+    /**
+     * Posting list of one term. Appends change the fields, under the monitor
+     * of the index or within one build worker, and reach searches once
+     * {@link #publish()} hands out a new block.
+     **/
+    private static final class Postings
+    {
+        private byte[] bytes = new byte[16];
+        private int length;
+        private int documents;
+        private int lastDocument;
+        private int[] skipDocuments = new int[0];
+        private int[] skipOffsets = new int[0];
+        private int skips;
+        private volatile Block block = Block.EMPTY;
+
+        private void append(int document, IntList at)
+        {
+            int needed = length + 15 + 5 * at.size();
+            if (bytes.length < needed) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+            if (documents > 0 && documents % SKIP == 0) {
+                skipDocuments = grow(skipDocuments, skips + 1);
+                skipOffsets = grow(skipOffsets, skips + 1);
+                skipDocuments[skips] = lastDocument;
+                skipOffsets[skips++] = length;
+            }
+            length = writePosting(bytes, length, document - lastDocument, at);
+            documents++;
+            lastDocument = document;
+        }
+
+        private void publish()
+        {
+            block = new Block(bytes, length, documents, lastDocument, skipDocuments, skipOffsets, skips);
+        }
+    }
+
+    /**
+     * Product, review position and rating of every document.
+     **/
+    private record Documents(int[] products, int[] positions, byte[] ratings, int count)
+    {
+        private static final Documents EMPTY = new Documents(new int[0], new int[0], new byte[0], 0);
+    }
+
+    private final Map<String, Postings> terms;
+    private final Map<Integer, Integer> currentFrom = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> indexed;
+    private volatile Documents documents;
+
+    ReviewIndex()
+    {
+        this(new ConcurrentHashMap<>(), Documents.EMPTY, new HashMap<>());
+    }
+
+    private ReviewIndex(Map<String, Postings> terms, Documents documents, Map<Integer, Integer> indexed)
+    {
+        this.terms = terms;
+        this.documents = documents;
+        this.indexed = indexed;
+    }
+
+    int size()
+    {
+        return documents.count();
+    }
+
+    int terms()
+    {
+        return terms.size();
+    }
+
+    /**
+     * Lower-cased runs of letters and digits of {@code text}, in order.
+     **/
+    static List<String> tokens(String text)
+    {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int c = text.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c)) {
+                token.appendCodePoint(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Positions of every term of a text, in order of first occurrence.
+     **/
+    private static Map<String, IntList> positions(String text)
+    {
+        Map<String, IntList> positions = new LinkedHashMap<>();
+        List<String> tokens = tokens(text);
+        for (int i = 0; i < tokens.size(); i++) {
+            positions.computeIfAbsent(tokens.get(i), t -> new IntList()).add(i);
+        }
+        return positions;
+    }
+
+    /**
+     * Indexes {@code reviews}, the reviews of a product from review list
+     * position {@code first} on. Comments are tokenized before the index is
+     * locked for the append.
+     **/
+    void add(int productId, int first, List<Review> reviews)
+    {
+        List<Map<String, IntList>> tokenized = new ArrayList<>(reviews.size());
+        for (Review review : reviews) {
+            tokenized.add(positions(review.comments()));
+        }
+        synchronized (this) {
+            Documents current = documents;
+            int count = current.count();
+            int[] products = grow(current.products(), count + reviews.size());
+            int[] positions = grow(current.positions(), count + reviews.size());
+            byte[] ratings = current.ratings();
+            if (ratings.length < count + reviews.size()) {
+                ratings = Arrays.copyOf(ratings, products.length);
+            }
+            for (int i = 0; i < reviews.size(); i++) {
+                int document = count + i;
+                products[document] = productId;
+                positions[document] = first + i;
+                ratings[document] = (byte) reviews.get(i).rating().ordinal();
+                tokenized.get(i).forEach((term, at) -> {
+                    Postings postings = terms.computeIfAbsent(term, t -> new Postings());
+                    postings.append(document, at);
+                    postings.publish();
+                });
+            }
+            documents = new Documents(products, positions, ratings, count + reviews.size());
+            indexed.put(productId, first + reviews.size());
+        }
+    }
+
+    /**
+     * Number of reviews of a product indexed since it was last indexed anew.
+     **/
+    synchronized int indexed(int productId)
+    {
+        return indexed.getOrDefault(productId, 0);
+    }
+
+    /**
+     * Hides every document of a product indexed so far, before the product
+     * is indexed anew or removed.
+     **/
+    synchronized void removeProduct(int productId)
+    {
+        currentFrom.put(productId, documents.count());
+        indexed.remove(productId);
+    }
+
+    private static int[] grow(int[] array, int size)
+    {
+        return array.length >= size ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+    }
+
+    private static int writePosting(byte[] bytes, int offset, int delta, IntList at)
+    {
+        offset = writeVarInt(bytes, offset, delta);
+        offset = writeVarInt(bytes, offset, at.size());
+        int sizeOffset = offset;
+        int positionsLength = 0;
+        for (int i = 0; i < at.size(); i++) {
+            positionsLength += varIntLength(at.get(i) - (i == 0 ? 0 : at.get(i - 1)));
+        }
+        offset = writeVarInt(bytes, sizeOffset, positionsLength);
+        for (int i = 0; i < at.size(); i++) {
+            offset = writeVarInt(bytes, offset, at.get(i) - (i == 0 ? 0 : at.get(i - 1)));
+        }
+        return offset;
+    }
+
+    private static int writeVarInt(byte[] bytes, int offset, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int varIntLength(int value)
+    {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Builds the index of a whole catalog. Consecutive ranges of products
+     * are indexed in parallel into partial indexes, whose posting lists are
+     * then joined term by term, also in parallel.
+     **/
+    static ReviewIndex build(Collection<CatalogSnapshot.Entry> entries)
+    {
+        List<CatalogSnapshot.Entry> products = new ArrayList<>(entries);
+        int[] firstDocument = new int[products.size() + 1];
+        for (int i = 0; i < products.size(); i++) {
+            firstDocument[i + 1] = firstDocument[i] + products.get(i).reviews().size();
+        }
+        int count = firstDocument[products.size()];
+        int[] productIds = new int[count];
+        int[] positions = new int[count];
+        byte[] ratings = new byte[count];
+        int parts = Math.max(1, Math.min(products.size(), Runtime.getRuntime().availableProcessors() * 4));
+        int[] bounds = new int[parts + 1];
+        for (int part = 1, product = 0; part <= parts; part++) {
+            long target = (long) count * part / parts;
+            while (product < products.size() && firstDocument[product] < target) {
+                product++;
+            }
+            bounds[part] = (part == parts) ? products.size() : product;
+        }
+        List<Map<String, Postings>> partial = IntStream.range(0, parts).parallel().mapToObj(part -> {
+            Map<String, Postings> local = new HashMap<>();
+            for (int p = bounds[part]; p < bounds[part + 1]; p++) {
+                CatalogSnapshot.Entry entry = products.get(p);
+                List<Review> reviews = entry.reviews();
+                for (int r = 0; r < reviews.size(); r++) {
+                    int document = firstDocument[p] + r;
+                    productIds[document] = entry.id();
+                    positions[document] = r;
+                    ratings[document] = (byte) reviews.get(r).rating().ordinal();
+                    positions(reviews.get(r).comments()).forEach((term, at) -> {
+                        local.computeIfAbsent(term, t -> new Postings()).append(document, at);
+                    });
+                }
+            }
+            return local;
+        }).toList();
+        Set<String> vocabulary = ConcurrentHashMap.newKeySet();
+        partial.parallelStream().forEach(local -> vocabulary.addAll(local.keySet()));
+        Map<String, Postings> terms = new ConcurrentHashMap<>(vocabulary.size() * 4 / 3 + 1);
+        vocabulary.parallelStream().forEach(term -> {
+            terms.put(term, join(term, partial));
+        });
+        Map<Integer, Integer> indexed = new HashMap<>(products.size() * 4 / 3 + 1);
+        for (int p = 0; p < products.size(); p++) {
+            indexed.put(products.get(p).id(), firstDocument[p + 1] - firstDocument[p]);
+        }
+        return new ReviewIndex(terms, new Documents(productIds, positions, ratings, count), indexed);
+    }
+
+    /**
+     * Joins the partial lists of a term in document order. Each partial list
+     * starts with a delta from document 0, which is rewritten as the delta
+     * from the last document of the lists before it; the rest is copied.
+     **/
+    private static Postings join(String term, List<Map<String, Postings>> partial)
+    {
+        int length = 0;
+        int documents = 0;
+        int skips = 0;
+        for (Map<String, Postings> local : partial) {
+            Postings postings = local.get(term);
+            if (postings != null) {
+                length += postings.length;
+                documents += postings.documents;
+                skips += postings.skips;
+            }
+        }
+        byte[] bytes = new byte[length];
+        int[] skipDocuments = new int[skips];
+        int[] skipOffsets = new int[skips];
+        int offset = 0;
+        int skip = 0;
+        int lastDocument = 0;
+        for (Map<String, Postings> local : partial) {
+            Postings postings = local.get(term);
+            if (postings == null) {
+                continue;
+            }
+            int first = 0;
+            int headerLength = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = postings.bytes[headerLength++];
+                first |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            int rewritten = writeVarInt(bytes, offset, first - lastDocument);
+            int shift = rewritten - (offset + headerLength);
+            System.arraycopy(postings.bytes, headerLength, bytes, rewritten, postings.length - headerLength);
+            for (int i = 0; i < postings.skips; i++) {
+                skipDocuments[skip] = postings.skipDocuments[i];
+                skipOffsets[skip++] = offset + postings.skipOffsets[i] + shift;
+            }
+            offset = rewritten + postings.length - headerLength;
+            lastDocument = postings.lastDocument;
+        }
+        Postings joined = new Postings();
+        joined.bytes = bytes;
+        joined.length = offset;
+        joined.documents = documents;
+        joined.lastDocument = lastDocument;
+        joined.skipDocuments = skipDocuments;
+        joined.skipOffsets = skipOffsets;
+        joined.skips = skips;
+        joined.publish();
+        return joined;
+    }
+
+    /**
+     * Decoder of one posting list that can jump ahead by its skip entries.
+     **/
+    private static final class Cursor
+    {
+        private final Block block;
+        private int offset;
+        private int document;
+        private int frequency;
+        private int positionsOffset;
+
+        private Cursor(Block block)
+        {
+            this.block = block;
+        }
+
+        /**
+         * Moves to the next document, or to {@link Integer#MAX_VALUE} after the last.
+         **/
+        private int next()
+        {
+            if (offset >= block.length()) {
+                document = Integer.MAX_VALUE;
+                return document;
+            }
+            document += readVarInt();
+            frequency = readVarInt();
+            int positionsLength = readVarInt();
+            positionsOffset = offset;
+            offset += positionsLength;
+            return document;
+        }
+
+        /**
+         * Moves to the first document at or after {@code target}.
+         **/
+        private int advance(int target)
+        {
+            if (offset > 0 && document >= target) {
+                return document;
+            }
+            int index = Arrays.binarySearch(block.skipDocuments(), 0, block.skips(), target);
+            int skip = (index >= 0 ? index : -index - 1) - 1;
+            if (skip >= 0 && block.skipOffsets()[skip] > offset) {
+                offset = block.skipOffsets()[skip];
+                document = block.skipDocuments()[skip];
+            }
+            while (next() < target) {
+                // decode on
+            }
+            return document;
+        }
+
+        private int[] positions()
+        {
+            int[] positions = new int[frequency];
+            int saved = offset;
+            offset = positionsOffset;
+            int position = 0;
+            for (int i = 0; i < frequency; i++) {
+                position += readVarInt();
+                positions[i] = position;
+            }
+            offset = saved;
+            return positions;
+        }
+
+        private int readVarInt()
+        {
+            byte[] bytes = block.bytes();
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[offset++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a query of whitespace separated terms that must all occur,
+     * double-quoted phrases whose terms must occur in sequence, and
+     * {@code OR} between such groups. Hits are ranked by the number of
+     * occurrences of the query terms, best first.
+     *
+     * @param ratings ratings of the reviews to consider, {@code null} for all
+     **/
+    List<Hit> search(String query, Set<Rating> ratings, int limit)
+    {
+        Documents docs = documents;
+        List<List<List<String>>> clauses = parse(query);
+        PriorityQueue<Long> top = new PriorityQueue<>();
+        IntBinaryOperator keep = (document, score) -> {
+            long key = ((long) score << 32) | (Integer.MAX_VALUE - document);
+            if (top.size() < limit) {
+                top.add(key);
+            } else if (limit > 0 && key > top.peek()) {
+                top.poll();
+                top.add(key);
+            }
+            return score;
+        };
+        if (clauses.size() == 1) {
+            match(clauses.get(0), docs, ratings, keep);
+        } else {
+            Map<Integer, Integer> scores = new HashMap<>();
+            for (List<List<String>> clause : clauses) {
+                match(clause, docs, ratings, (document, score) -> scores.merge(document, score, Integer::sum));
+            }
+            scores.forEach(keep::applyAsInt);
+        }
+        List<Hit> hits = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            long key = top.poll();
+            int document = Integer.MAX_VALUE - (int) key;
+            hits.add(new Hit(docs.products()[document], docs.positions()[document], (int) (key >>> 32)));
+        }
+        Collections.reverse(hits);
+        return hits;
+    }
+
+    /**
+     * Query as OR of clauses, each an AND of phrases, a single term being a
+     * phrase of one.
+     **/
+    static List<List<List<String>>> parse(String query)
+    {
+        List<List<List<String>>> clauses = new ArrayList<>();
+        List<List<String>> clause = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                end = (end < 0) ? query.length() : end;
+                List<String> phrase = tokens(query.substring(i + 1, end));
+                if (!phrase.isEmpty()) {
+                    clause.add(phrase);
+                }
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"') {
+                    end++;
+                }
+                String word = query.substring(i, end);
+                if (word.equals("OR")) {
+                    if (!clause.isEmpty()) {
+                        clauses.add(clause);
+                    }
+                    clause = new ArrayList<>();
+                } else {
+                    for (String token : tokens(word)) {
+                        clause.add(List.of(token));
+                    }
+                }
+                i = end;
+            }
+        }
+        if (!clause.isEmpty()) {
+            clauses.add(clause);
+        }
+        return clauses;
+    }
+
+    /**
+     * Hands every document matching all phrases of a clause with its score
+     * to {@code scores}, intersecting the posting lists rarest first.
+     **/
+    private void match(List<List<String>> clause, Documents docs, Set<Rating> ratings, IntBinaryOperator scores)
+    {
+        Map<String, Cursor> cursors = new LinkedHashMap<>();
+        for (List<String> phrase : clause) {
+            for (String term : phrase) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    return;
+                }
+                cursors.computeIfAbsent(term, t -> new Cursor(postings.block));
+            }
+        }
+        Cursor[] order = cursors.values().toArray(new Cursor[0]);
+        Arrays.sort(order, (a, b) -> Integer.compare(a.block.documents(), b.block.documents()));
+        Rating[] values = Rating.values();
+        int candidate = order[0].next();
+        while (candidate < docs.count()) {
+            int agreed = candidate;
+            for (int i = 1; i < order.length && agreed == candidate; i++) {
+                agreed = order[i].advance(candidate);
+            }
+            if (agreed != candidate) {
+                candidate = order[0].advance(agreed);
+                continue;
+            }
+            if ((ratings == null || ratings.contains(values[docs.ratings()[candidate]]))
+                    && isCurrent(docs.products()[candidate], candidate) && phrasesMatch(clause, cursors)) {
+                int score = 0;
+                for (Cursor cursor : order) {
+                    score += cursor.frequency;
+                }
+                scores.applyAsInt(candidate, score);
+            }
+            candidate = order[0].next();
+        }
+    }
+
+    private boolean isCurrent(int productId, int document)
+    {
+        if (currentFrom.isEmpty()) {
+            return true;
+        }
+        Integer from = currentFrom.get(productId);
+        return from == null || document >= from;
+    }
+
+    private static boolean phrasesMatch(List<List<String>> clause, Map<String, Cursor> cursors)
+    {
+        for (List<String> phrase : clause) {
+            if (phrase.size() > 1 && !phraseMatches(phrase, cursors)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean phraseMatches(List<String> phrase, Map<String, Cursor> cursors)
+    {
+        int[][] positions = new int[phrase.size()][];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = cursors.get(phrase.get(i)).positions();
+        }
+        for (int start : positions[0]) {
+            boolean matches = true;
+            for (int i = 1; i < positions.length && matches; i++) {
+                matches = Arrays.binarySearch(positions[i], start + i) >= 0;
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Growable list of ints, for the positions of a term in one comment.
+     **/
+    private static final class IntList
+    {
+        private int[] values = new int[2];
+        private int size;
+
+        private void add(int value)
+        {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int get(int index)
+        {
+            return values[index];
+        }
+
+        private int size()
+        {
+            return size;
+        }
+    }
+}
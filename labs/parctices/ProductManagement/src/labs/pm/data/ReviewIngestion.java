@@ -0,0 +1,176 @@
+package labs.pm.data;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+import static labs.pm.data.ProductManager.logger;
+
+/**
+ * Pipeline that applies submitted reviews in micro-batches.
+ * Reviews wait in a bounded queue, so producers block once it is full
+ * instead of outrunning the manager. A single worker takes whatever is
+ * waiting, up to the batch size, as one batch: under a burst batches
+ * fill up and every product is re-rated once per batch, while a trickle
+ * of reviews is applied at once in small batches. Producers check that
+ * the pipeline is open and queue under a shared lock, which closing takes
+ * exclusively, so no review is queued once the worker may have stopped.
+ * Obtain one through {@link ProductManager#openIngestion(int, int)}.
+ **/
+public final class ReviewIngestion implements AutoCloseable
+{
+    @FunctionalInterface
+    interface Sink
+    {
+        int apply(List<ReviewEvent> batch) throws IOException;
+    }
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Sink sink;
+    private final Metrics metrics;
+    private final BlockingQueue<ReviewEvent> queue;
+    private final int batchSize;
+    private final Thread worker;
+    private final long started = System.nanoTime();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+    private volatile long finished;
+
+    ReviewIngestion(Sink sink, Metrics metrics, int capacity, int batchSize)
+    {
+        this.sink = sink;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.worker = new Thread(this::run, "review-ingestion");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues a review, waiting while the queue is full.
+     **/
+    public void submit(ReviewEvent event) throws InterruptedException
+    {
+        closing.readLock().lockInterruptibly();
+        try {
+            checkOpen();
+            queue.put(event);
+            submitted.incrementAndGet();
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queues a review unless the queue stays full for {@code timeout}.
+     **/
+    public boolean offer(ReviewEvent event, Duration timeout) throws InterruptedException
+    {
+        closing.readLock().lockInterruptibly();
+        try {
+            checkOpen();
+            boolean queued = queue.offer(event, timeout.toNanos(), TimeUnit.NANOSECONDS);
+            if (queued) {
+                submitted.incrementAndGet();
+            }
+            return queued;
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    private void checkOpen()
+    {
+        if (closed) {
+            throw new IllegalStateException("Review ingestion is closed");
+        }
+    }
+
+    private void run()
+    {
+        List<ReviewEvent> batch = new ArrayList<>(batchSize);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                ReviewEvent first = queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                apply(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Review ingestion interrupted with " + queue.size() + " reviews queued");
+        } finally {
+            finished = System.nanoTime();
+        }
+    }
+
+    private void apply(List<ReviewEvent> batch)
+    {
+        long start = System.nanoTime();
+        try {
+            int count = sink.apply(batch);
+            applied.addAndGet(count);
+            rejected.addAndGet(batch.size() - count);
+        } catch (IOException | RuntimeException e) {
+            failed.addAndGet(batch.size());
+            logger.log(Level.SEVERE, "Error applying " + batch.size() + " reviews: " + e.getMessage(), e);
+        }
+        long nanos = System.nanoTime() - start;
+        latency.record(nanos);
+        metrics.record(Metrics.Timer.REVIEW_BATCH, nanos);
+    }
+
+    public LatencyHistogram getBatchLatency()
+    {
+        return latency;
+    }
+
+    public IngestionStats stats()
+    {
+        long end = finished != 0 ? finished : System.nanoTime();
+        return new IngestionStats(submitted.get(), applied.get(), rejected.get(), failed.get(), latency.getCount(),
+            latency.getMean(), latency.getPercentile(0.99), latency.getMax(), Duration.ofNanos(end - started));
+    }
+
+    /**
+     * Stops accepting reviews and waits until the queued ones are applied.
+     * Producers still queueing, or waiting for room, are let finish first.
+     *
+     * @throws IllegalStateException when interrupted while waiting; the
+     *         interrupt status is kept and the worker goes on applying
+     **/
+    @Override
+    public void close()
+    {
+        closing.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while applying " + queue.size() + " queued reviews", e);
+        }
+    }
+}
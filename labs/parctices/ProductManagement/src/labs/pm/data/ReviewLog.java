@@ -0,0 +1,229 @@
+package labs.pm.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of reviews.
+ * Every record is {@code int length, int product id, byte rating, UTF-8
+ * comments, int CRC32}. Appending threads that arrive while a write is in
+ * progress are grouped into the next batch, which is written and forced to
+ * disk once for all of them. A batch that fails is cut off the log again,
+ * so that no record after it is lost to a torn one on replay, and fails
+ * every append it holds, even once later batches succeed.
+ **/
+final class ReviewLog implements Closeable
+{
+    @FunctionalInterface
+    interface Replay
+    {
+        void apply(int id, Rating rating, String comments);
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final boolean sync;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended;
+    private long taken;
+    private long durable;
+    private final NavigableMap<Long, Long> failed = new TreeMap<>();
+    private IOException broken;
+    private boolean flushing;
+
+    ReviewLog(Path file, boolean sync) throws IOException
+    {
+        this.file = file;
+        this.sync = sync;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    Path getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Reads every intact record from the start of the log and truncates a
+     * torn or corrupt tail left behind by a crash.
+     **/
+    synchronized int replay(Replay replay) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+        while (data.hasRemaining() && channel.read(data, data.position()) >= 0) {
+        }
+        data.flip();
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= 4) {
+            int start = data.position();
+            int length = data.getInt();
+            if (length < 5 || (long) length + 4 > data.remaining()) {
+                data.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), start + 4, length);
+            int id = data.getInt();
+            int rating = data.get();
+            String comments = new String(data.array(), data.position(), length - 5, StandardCharsets.UTF_8);
+            data.position(data.position() + length - 5);
+            if (data.getInt() != (int) crc.getValue()) {
+                data.position(start);
+                break;
+            }
+            replay.apply(id, Rateable.convert(rating), comments);
+            count++;
+        }
+        if (data.position() < channel.size()) {
+            channel.truncate(data.position());
+        }
+        channel.position(data.position());
+        return count;
+    }
+
+    /**
+     * Appends a review and returns once it is durable.
+     **/
+    void append(int id, Rating rating, String comments) throws IOException
+    {
+        commit(record(id, rating, comments));
+    }
+
+    /**
+     * Appends a batch of reviews, made durable together.
+     **/
+    void append(List<ReviewEvent> events) throws IOException
+    {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (ReviewEvent event : events) {
+            records.writeBytes(record(event.productId(), event.rating(), event.comments()));
+        }
+        commit(records.toByteArray());
+    }
+
+    private static byte[] record(int id, Rating rating, String comments)
+    {
+        byte[] text = comments.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + 5 + text.length + 4);
+        record.putInt(5 + text.length).putInt(id).put((byte) rating.ordinal()).put(text);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 5 + text.length);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    private void commit(byte[] records) throws IOException
+    {
+        long sequence;
+        synchronized (this) {
+            pending.write(records, 0, records.length);
+            sequence = ++appended;
+        }
+        while (true) {
+            ByteBuffer batch;
+            long batchStart;
+            long batchEnd;
+            synchronized (this) {
+                while (flushing && durable < sequence) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the review log", e);
+                    }
+                }
+                Map.Entry<Long, Long> failedBatch = failed.ceilingEntry(sequence);
+                if (failedBatch != null && failedBatch.getValue() <= sequence) {
+                    throw new IOException("Review log write to " + file + " failed");
+                }
+                if (durable >= sequence) {
+                    return;
+                }
+                if (broken != null) {
+                    failed.put(appended, taken + 1);
+                    taken = appended;
+                    pending.reset();
+                    throw new IOException("Review log " + file + " holds a torn record until it is reset", broken);
+                }
+                flushing = true;
+                batch = ByteBuffer.wrap(pending.toByteArray());
+                batchStart = taken + 1;
+                batchEnd = appended;
+                taken = batchEnd;
+                pending.reset();
+            }
+            IOException failure = null;
+            long offset = channel.position();
+            try {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                failure = e;
+                try {
+                    channel.truncate(offset);
+                    channel.position(offset);
+                } catch (IOException truncation) {
+                    failure.addSuppressed(truncation);
+                }
+            }
+            synchronized (this) {
+                flushing = false;
+                if (failure == null) {
+                    durable = batchEnd;
+                } else {
+                    failed.put(batchEnd, batchStart);
+                    if (failure.getSuppressed().length > 0) {
+                        broken = failure;
+                    }
+                }
+                notifyAll();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Drops every record, once they have been folded into the data files.
+     * A group commit being written is waited for, so it is not cut short.
+     **/
+    synchronized void reset() throws IOException
+    {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the review log", e);
+            }
+        }
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        broken = null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,325 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static labs.pm.data.ProductManager.logger;
+
+/**
+ * Catalog partitioned by product id across several in-memory
+ * {@link ProductManager} shards. Each shard has a thread of its own, and
+ * every change of a product runs on the thread of its shard, so writers of
+ * different shards never meet and writers of the same shard never wait
+ * for each other's locks. Lookups read the published catalog of the shard
+ * directly; queries and discounts are gathered from all shards and merged.
+ * Nothing here depends on a locale: formatted results take the language
+ * tag of the request.
+ **/
+public final class ShardedProductManager implements AutoCloseable
+{
+    private final ProductManager[] shards;
+    private final ExecutorService[] owners;
+    private final Metrics metrics;
+    private volatile Clock clock = Clock.systemDefaultZone();
+
+    public ShardedProductManager(int shards)
+    {
+        this(shards, Metrics.NONE);
+    }
+
+    public ShardedProductManager(int shards, Metrics metrics)
+    {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is required: " + shards);
+        }
+        this.metrics = metrics;
+        this.shards = new ProductManager[shards];
+        this.owners = new ExecutorService[shards];
+        for (int i = 0; i < shards; i++) {
+            String name = "product-shard-" + i;
+            this.shards[i] = new ProductManager(Locale.UK, metrics);
+            this.owners[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Replaces the catalog with the products and reviews of {@code catalog},
+     * for instance the catalog a {@link ProductManager} loaded from files.
+     * Summaries and the loaded review lists are shared with it; the reviews
+     * appended since are copied, so that the shards and {@code catalog}'s
+     * manager each append to lists of their own.
+     **/
+    public void load(CatalogSnapshot catalog) throws ProductManagerException
+    {
+        List<List<CatalogSnapshot.Entry>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>(catalog.size() / shards.length + 1));
+        }
+        for (CatalogSnapshot.Entry entry : catalog.entries()) {
+            parts.get(shardOf(entry.id())).add(entry.withReviews(AppendedReviews.rebase(entry.reviews()),
+                entry.knownSummary()));
+        }
+        List<Future<Void>> loaded = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            ProductManager shard = shards[i];
+            List<CatalogSnapshot.Entry> part = parts.get(i);
+            loaded.add(owners[i].submit(() -> {
+                shard.replaceEntries(part);
+                return null;
+            }));
+        }
+        for (Future<Void> future : loaded) {
+            await(future);
+        }
+        logger.log(Level.INFO, "Loaded " + catalog.size() + " products into " + shards.length + " shards");
+    }
+
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore)
+        throws ProductManagerException
+    {
+        ProductManager shard = shards[shardOf(id)];
+        return call(id, () -> shard.createProduct(id, name, price, rating, bestBefore));
+    }
+
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating)
+        throws ProductManagerException
+    {
+        ProductManager shard = shards[shardOf(id)];
+        return call(id, () -> shard.createProduct(id, name, price, rating));
+    }
+
+    /**
+     * Reviews a product on the thread of its shard.
+     *
+     * @return the re-rated product, or {@code null} when there is no such product
+     **/
+    public Product reviewProduct(int id, Rating rating, String comments) throws ProductManagerException
+    {
+        ProductManager shard = shards[shardOf(id)];
+        return call(id, () -> shard.reviewProduct(id, rating, comments));
+    }
+
+    public Product findProduct(int id) throws ProductManagerException
+    {
+        return shards[shardOf(id)].findProduct(id);
+    }
+
+    public RatingSummary getRatingSummary(int id) throws ProductManagerException
+    {
+        return shards[shardOf(id)].getRatingSummary(id);
+    }
+
+    /**
+     * Current catalog of the shard holding {@code id}; snapshots of
+     * different shards are published independently.
+     **/
+    public CatalogSnapshot getCatalog(int id)
+    {
+        return shards[shardOf(id)].getCatalog();
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (ProductManager shard : shards) {
+            size += shard.getCatalog().size();
+        }
+        return size;
+    }
+
+    /**
+     * Starts a pipeline that splits every batch of submitted reviews by
+     * shard and applies the parts on their shards at the same time.
+     **/
+    public ReviewIngestion openIngestion(int capacity, int batchSize)
+    {
+        return new ReviewIngestion(this::ingestBatch, metrics, capacity, batchSize);
+    }
+
+    private int ingestBatch(List<ReviewEvent> batch)
+    {
+        List<List<ReviewEvent>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (ReviewEvent event : batch) {
+            parts.get(shardOf(event.productId())).add(event);
+        }
+        List<Future<Integer>> applied = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            List<ReviewEvent> part = parts.get(i);
+            if (!part.isEmpty()) {
+                ProductManager shard = shards[i];
+                applied.add(owners[i].submit(() -> shard.ingestBatch(part)));
+            }
+        }
+        int total = 0;
+        for (Future<Integer> future : applied) {
+            try {
+                total += await(future);
+            } catch (ProductManagerException e) {
+                logger.log(Level.WARNING, "Review batch failed on a shard: " + e.getMessage(), e);
+            }
+        }
+        return total;
+    }
+
+    public ProductQuery query()
+    {
+        return new ProductQuery(this::execute);
+    }
+
+    public void printProducts(ProductQuery query, String languageTag)
+    {
+        System.out.println(ProductManager.formatProducts(languageTag, query.list()));
+    }
+
+    /**
+     * Runs the query on every shard at once, each keeping its first
+     * {@code offset + limit} matches in query order, and merges the sorted
+     * parts; unordered queries take the parts in shard order.
+     **/
+    private List<Product> execute(ProductQuery query)
+    {
+        int keep = (int) Math.min(Integer.MAX_VALUE, (long) query.offset + query.limit);
+        List<Future<List<Product>>> scattered = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            ProductManager shard = shards[i];
+            scattered.add(owners[i].submit(() -> shard.execute(query, 0, keep)));
+        }
+        List<List<Product>> parts = new ArrayList<>(shards.length);
+        for (Future<List<Product>> future : scattered) {
+            try {
+                parts.add(await(future));
+            } catch (ProductManagerException e) {
+                throw new IllegalStateException("Query failed on a shard", e);
+            }
+        }
+        List<Product> result = new ArrayList<>();
+        if (query.order == null) {
+            for (List<Product> part : parts) {
+                result.addAll(part);
+            }
+        } else {
+            merge(parts, query.order, keep, result);
+        }
+        return result.subList(Math.min(query.offset, result.size()), Math.min(keep, result.size()));
+    }
+
+    private static void merge(List<List<Product>> parts, Comparator<Product> order, int keep, List<Product> result)
+    {
+        record Cursor(List<Product> part, int position) {}
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(parts.size(),
+            (a, b) -> order.compare(a.part().get(a.position()), b.part().get(b.position())));
+        for (List<Product> part : parts) {
+            if (!part.isEmpty()) {
+                heads.add(new Cursor(part, 0));
+            }
+        }
+        while (!heads.isEmpty() && result.size() < keep) {
+            Cursor head = heads.poll();
+            result.add(head.part().get(head.position()));
+            if (head.position() + 1 < head.part().size()) {
+                heads.add(new Cursor(head.part(), head.position() + 1));
+            }
+        }
+    }
+
+    /**
+     * Average discount of every rating over all shards, formatted for
+     * {@code languageTag}.
+     **/
+    public Map<String, String> getDiscounts(String languageTag)
+    {
+        LocalDateTime now = LocalDateTime.now(clock);
+        boolean discountTime = Drink.isDiscountTime(now.toLocalTime());
+        long[] cents = new long[Rating.values().length];
+        long[] products = new long[cents.length];
+        for (ProductManager shard : shards) {
+            shard.collectDiscounts(now.toLocalDate(), discountTime, cents, products);
+        }
+        return ProductManager.formatDiscounts(languageTag, DiscountAggregates.averages(cents, products));
+    }
+
+    public void setClock(Clock clock)
+    {
+        this.clock = clock;
+    }
+
+    @Override
+    public void close()
+    {
+        for (ExecutorService owner : owners) {
+            owner.shutdown();
+        }
+        try {
+            for (ExecutorService owner : owners) {
+                if (!owner.awaitTermination(10, TimeUnit.SECONDS)) {
+                    logger.log(Level.WARNING, "Shard thread did not finish in time");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ProductManager shard : shards) {
+            shard.close();
+        }
+    }
+
+    private int shardOf(int id)
+    {
+        int h = id * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    private <T> T call(int id, Callable<T> task) throws ProductManagerException
+    {
+        return await(owners[shardOf(id)].submit(task));
+    }
+
+    /**
+     * Waits for a shard task; what the task threw is rethrown as it is when
+     * unchecked and wrapped otherwise.
+     **/
+    private static <T> T await(Future<T> future) throws ProductManagerException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProductManagerException("Interrupted while waiting for a shard");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new ProductManagerException(e.getCause());
+        }
+    }
+}
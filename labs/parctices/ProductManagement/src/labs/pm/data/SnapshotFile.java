@@ -0,0 +1,256 @@
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Versioned binary snapshot of the catalog.
+ * <pre>
+ * header         magic, version, product count, review count, table offset
+ * review blob    per product: int offsets of its reviews, then the reviews
+ *                as (byte rating, int length, UTF-8 comment)
+ * name blob      UTF-8 product names
+ * product table  one fixed size record per product
+ * </pre>
+ * The file is written in one pass through a {@link FileChannel} and read
+ * back through a {@link MappedByteBuffer}: product records are decoded on
+ * restore, reviews only when they are accessed. It is written under a
+ * temporary name and only renamed once complete, so a failed write never
+ * leaves a snapshot behind.
+ **/
+final class SnapshotFile
+{
+    private static final int MAGIC = 0x504D534E;
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 8 + 8;
+    private static final int RATINGS = Rating.values().length;
+    private static final int RECORD_SIZE = 1 + 1 + 2 + 4 + 8 + 8 + 8 + 4 + 4 + 4 * RATINGS;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private SnapshotFile()
+    {
+    }
+
+    static long write(Path file, Map<Product, List<Review>> products) throws IOException
+    {
+        for (Product product : products.keySet()) {
+            BigDecimal price = product.getPrice();
+            if (price.unscaledValue().bitLength() > 63 || price.scale() != (short) price.scale()) {
+                throw new IOException("Price " + price + " of product " + product.getId()
+                    + " does not fit in a snapshot");
+            }
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            long size = writeFile(temp, products);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static long writeFile(Path file, Map<Product, List<Review>> products) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            buffer.position(HEADER_SIZE);
+            long position = HEADER_SIZE;
+            long reviewCount = 0;
+            ByteBuffer table = ByteBuffer.allocate(products.size() * RECORD_SIZE);
+            List<byte[]> names = new ArrayList<>(products.size());
+            int namesLength = 0;
+            for (Map.Entry<Product, List<Review>> entry : products.entrySet()) {
+                Product product = entry.getKey();
+                List<Review> reviews = ReviewCache.resolve(entry.getValue());
+                BigDecimal price = product.getPrice();
+                byte[] name = product.getName().getBytes(StandardCharsets.UTF_8);
+                int[] histogram = new int[RATINGS];
+                table.put((byte) (product instanceof Food ? 'F' : 'D'))
+                    .put((byte) product.getRating().ordinal())
+                    .putShort((short) price.scale())
+                    .putInt(product.getId())
+                    .putLong(price.unscaledValue().longValueExact())
+                    .putLong(product instanceof Food ? product.getBestBefore().toEpochDay() : NO_DATE)
+                    .putLong(position)
+                    .putInt(namesLength)
+                    .putInt(name.length);
+                names.add(name);
+                namesLength += name.length;
+
+                byte[][] comments = new byte[reviews.size()][];
+                int offset = 4 * comments.length;
+                position += offset;
+                for (int i = 0; i < comments.length; i++) {
+                    comments[i] = reviews.get(i).comments().getBytes(StandardCharsets.UTF_8);
+                    buffer = ensure(channel, buffer, 4);
+                    buffer.putInt(offset);
+                    offset += 5 + comments[i].length;
+                }
+                for (int i = 0; i < comments.length; i++) {
+                    Rating rating = reviews.get(i).rating();
+                    histogram[rating.ordinal()]++;
+                    buffer = ensure(channel, buffer, 5);
+                    buffer.put((byte) rating.ordinal()).putInt(comments[i].length);
+                    buffer = put(channel, buffer, comments[i]);
+                    position += 5 + comments[i].length;
+                }
+                for (int count : histogram) {
+                    table.putInt(count);
+                }
+                reviewCount += comments.length;
+            }
+            for (byte[] name : names) {
+                buffer = put(channel, buffer, name);
+            }
+            long tableOffset = position + namesLength;
+            buffer = put(channel, buffer, table.array());
+            flush(channel, buffer);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) 0)
+                .putInt(products.size())
+                .putLong(reviewCount)
+                .putLong(tableOffset)
+                .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            return channel.size();
+        }
+    }
+
+    static Map<Product, List<Review>> read(Path file) throws IOException
+    {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " is too large to be mapped");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a product snapshot");
+        }
+        short version = data.getShort(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + " in " + file);
+        }
+        int productCount = data.getInt(8);
+        int tableOffset = (int) data.getLong(20);
+        int namesOffset = tableOffset;
+        Map<Product, List<Review>> products = new HashMap<>(productCount * 4 / 3 + 1);
+        for (int i = 0; i < productCount; i++) {
+            namesOffset -= data.getInt(tableOffset + i * RECORD_SIZE + 36);
+        }
+        for (int i = 0; i < productCount; i++) {
+            int record = tableOffset + i * RECORD_SIZE;
+            char type = (char) data.get(record);
+            Rating rating = Rating.of(data.get(record + 1));
+            BigDecimal price = BigDecimal.valueOf(data.getLong(record + 8), data.getShort(record + 2));
+            int id = data.getInt(record + 4);
+            long bestBefore = data.getLong(record + 16);
+            int reviewsOffset = (int) data.getLong(record + 24);
+            byte[] name = new byte[data.getInt(record + 36)];
+            data.get(namesOffset + data.getInt(record + 32), name);
+            int[] histogram = new int[RATINGS];
+            for (int r = 0; r < RATINGS; r++) {
+                histogram[r] = data.getInt(record + 40 + 4 * r);
+            }
+            String productName = new String(name, StandardCharsets.UTF_8);
+            Product product = (type == 'F')
+                ? new Food(id, productName, price, rating, LocalDate.ofEpochDay(bestBefore))
+                : new Drink(id, productName, price, rating);
+            products.put(product, new SnapshotReviews(data, reviewsOffset, new RatingSummary(histogram)));
+        }
+        return products;
+    }
+
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException
+    {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer put(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length) {
+            buffer = ensure(channel, buffer, 1);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read-only review list backed by the mapped snapshot. Reviews are
+     * decoded on access.
+     **/
+    static final class SnapshotReviews extends AbstractList<Review> implements RandomAccess
+    {
+        private final ByteBuffer data;
+        private final int offset;
+        private final RatingSummary summary;
+
+        private SnapshotReviews(ByteBuffer data, int offset, RatingSummary summary)
+        {
+            this.data = data;
+            this.offset = offset;
+            this.summary = summary;
+        }
+
+        RatingSummary summary()
+        {
+            return summary.copy();
+        }
+
+        @Override
+        public Review get(int index)
+        {
+            if (index < 0 || index >= summary.getCount()) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            int review = offset + data.getInt(offset + 4 * index);
+            byte[] comments = new byte[data.getInt(review + 1)];
+            data.get(review + 5, comments);
+            return new Review(Rating.of(data.get(review)), new String(comments, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int size()
+        {
+            return summary.getCount();
+        }
+    }
+}